@@ -0,0 +1,57 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.utils.BlockingLinkedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlockingLinkedList under contention: two threads adding while two threads take. Every element is a new Object, so
+ * add's uniqueness check never matches, but it still walks the whole list. Takers poll rather than take so the
+ * benchmark can end without waiting on an empty list.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockingLinkedListBenchmark {
+
+    private BlockingLinkedList<Object> list;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        list = new BlockingLinkedList<>();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public boolean add() {
+        // Keep the list short so the benchmark measures contention rather than the contains scan
+        if (list.size() > 64) {
+            return false;
+        }
+        return list.add(new Object());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public Object take() {
+        return list.poll();
+    }
+}
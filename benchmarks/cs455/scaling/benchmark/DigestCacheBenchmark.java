@@ -0,0 +1,54 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.digest.DigestCache;
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.message.HashMessage;
+import cs455.scaling.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing a message that has been hashed before through a DigestCache, against MessageBenchmark.digestInto. A hit
+ * costs the xxHash64 fingerprint and a byte comparison with the stored copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestCacheBenchmark {
+
+    @Param({"sha1", "sha256"})
+    public String algorithm;
+
+    private Message message;
+    private HashMessage hash;
+
+    @Setup
+    public void setup() {
+        DigestCache cache = new DigestCache(16 * 1024 * 1024);
+        HashAlgorithm cached = cache.forId(HashAlgorithms.forName(algorithm).getId());
+        message = new Message(new Message().getRawBytes(), null, cached);
+        hash = new HashMessage(cached);
+        message.digestInto(hash);
+    }
+
+    @Benchmark
+    public HashMessage hit() {
+        message.digestInto(hash);
+        return hash;
+    }
+}
@@ -0,0 +1,97 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.message.Message;
+import cs455.scaling.pool.ThreadPool;
+import cs455.scaling.server.ServerConfig;
+import cs455.scaling.work.SelectorWork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>End to end: a SelectorWork and its ThreadPool on a loopback port, and one blocking client that sends window
+ * messages and then reads all of their hashes. With a window of 1 this is the round trip latency of one message;
+ * larger windows run the server with a pipeline of the same depth.</p>
+ * <p>The server's threads never exit, so the forked VM is told to stop waiting for them.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class LoopbackBenchmark {
+
+    @Param({"1", "8"})
+    public int window;
+
+    @Param({"MANAGED", "WORK_STEALING"})
+    public ThreadPool.Mode mode;
+
+    private SocketChannel client;
+    private ByteBuffer message;
+    private ByteBuffer hashes;
+
+    @Setup
+    public void setup() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("localhost", 0));
+        serverChannel.configureBlocking(false);
+        Selector selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        ServerConfig config = ServerConfig.parse(window > 1
+                ? new String[] { "0", "4", "--pipeline", Integer.toString(window) }
+                : new String[] { "0", "4" });
+        ThreadPool threadPool = new ThreadPool(4, mode);
+        threadPool.registerWork(new SelectorWork(selector, serverChannel, threadPool, config));
+        Thread poolThread = new Thread(threadPool);
+        poolThread.setDaemon(true);
+        poolThread.start();
+
+        client = SocketChannel.open(serverChannel.getLocalAddress());
+        client.write(ByteBuffer.wrap(new byte[] { HashAlgorithms.SHA1_ID }));
+        message = ByteBuffer.allocateDirect(Message.SIZE);
+        message.put(new Message().getRawBytes());
+        hashes = ByteBuffer.allocateDirect(window * HashAlgorithms.SHA1.getLength() * 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Benchmark
+    public ByteBuffer roundTrip() throws IOException {
+        for (int i = 0; i < window; i++) {
+            message.clear();
+            while (message.hasRemaining()) {
+                client.write(message);
+            }
+        }
+        hashes.clear();
+        while (hashes.hasRemaining()) {
+            client.read(hashes);
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,58 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.message.HashMessage;
+import cs455.scaling.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing an 8 KB message: getHash, which allocates a HashMessage and hex String per call, against digestInto, which
+ * writes into a reused HashMessage, for every supported algorithm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @Param({"sha1", "sha256", "crc32c", "xxhash64"})
+    public String algorithm;
+
+    private Message message;
+    private HashAlgorithm hashAlgorithm;
+    private HashMessage hash;
+
+    @Setup
+    public void setup() {
+        hashAlgorithm = HashAlgorithms.forName(algorithm);
+        Message random = new Message();
+        message = new Message(random.getRawBytes(), null, hashAlgorithm);
+        hash = new HashMessage(hashAlgorithm);
+    }
+
+    @Benchmark
+    public String getHash() {
+        return message.getHash().getHash();
+    }
+
+    @Benchmark
+    public HashMessage digestInto() {
+        message.digestInto(hash);
+        return hash;
+    }
+}
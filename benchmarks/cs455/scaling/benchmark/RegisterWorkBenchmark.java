@@ -0,0 +1,71 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.pool.ThreadPool;
+import cs455.scaling.work.Work;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch latency of ThreadPool.registerWork: the time from registering an empty Work object on an outside thread
+ * until a pool thread has run it, for each pool mode and size. The pool's threads never exit, so the forked VM is
+ * told to stop waiting for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class RegisterWorkBenchmark {
+
+    @Param({"MANAGED", "WORK_STEALING", "FAIR"})
+    public ThreadPool.Mode mode;
+
+    @Param({"2", "4", "8"})
+    public int poolSize;
+
+    private ThreadPool threadPool;
+    private Signal signal;
+
+    /**
+     * Work that only records that it has run
+     */
+    private static class Signal extends Work {
+        private volatile boolean ran;
+
+        @Override
+        public void run() {
+            ran = true;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        threadPool = new ThreadPool(poolSize, mode);
+        Thread poolThread = new Thread(threadPool);
+        poolThread.setDaemon(true);
+        poolThread.start();
+        signal = new Signal();
+    }
+
+    @Benchmark
+    public boolean registerAndRun() {
+        signal.ran = false;
+        threadPool.registerWork(signal);
+        while (!signal.ran) {
+            Thread.onSpinWait();
+        }
+        return signal.ran;
+    }
+}
@@ -0,0 +1,51 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.server.Report;
+import cs455.scaling.server.ReportCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a Report from the counters of an increasing number of connections.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int connections;
+
+    private ArrayList<ReportCounter> counters;
+
+    @Setup
+    public void setup() {
+        counters = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            ReportCounter counter = new ReportCounter(InetSocketAddress.createUnresolved("client", i));
+            counter.add(i);
+            counters.add(counter);
+        }
+    }
+
+    @Benchmark
+    public Report construct() {
+        return new Report(counters);
+    }
+}
@@ -0,0 +1,58 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.utils.SafeArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SafeArrayList.getAndRemoveAll on lists of increasing size, where one element in eight matches, as when the hashes
+ * of one of eight connections are taken out of a shared list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SafeArrayListBenchmark {
+
+    private static final int CONNECTIONS = 8;
+
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private SafeArrayList<Integer> list;
+    private ArrayList<Integer> contents;
+
+    @Setup(Level.Trial)
+    public void createContents() {
+        contents = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            contents.add(i % CONNECTIONS);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        list = new SafeArrayList<>();
+        list.addAll(contents);
+    }
+
+    @Benchmark
+    public ArrayList<Integer> getAndRemoveAll() {
+        return list.getAndRemoveAll(0);
+    }
+}
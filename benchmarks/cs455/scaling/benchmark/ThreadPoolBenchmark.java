@@ -0,0 +1,110 @@
+package cs455.scaling.benchmark;
+
+import cs455.scaling.pool.ThreadPool;
+import cs455.scaling.work.Work;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatch throughput of each pool mode, in tasks run per millisecond. external has one outside thread register
+ * EXTERNAL_TASKS tiny Work objects, local runs Work that registers two more from inside the pool until DEPTH is
+ * reached. Both wait for every task to finish. Dispatch latency is measured by RegisterWorkBenchmark. The pool's
+ * threads never exit, so the forked VM is told to stop waiting for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class ThreadPoolBenchmark {
+
+    private static final int EXTERNAL_TASKS = 16384;
+    private static final int DEPTH = 14;
+    private static final int LOCAL_TASKS = (1 << (DEPTH + 1)) - 1;
+
+    @Param({"MANAGED", "WORK_STEALING", "FAIR"})
+    public ThreadPool.Mode mode;
+
+    @Param({"4", "8"})
+    public int poolSize;
+
+    private ThreadPool threadPool;
+    private final AtomicInteger completed = new AtomicInteger();
+
+    /**
+     * Work that only counts itself as done
+     */
+    private class TinyWork extends Work {
+        @Override
+        public void run() {
+            completed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Work that registers two children until depth reaches 0
+     */
+    private class SplittingWork extends Work {
+        private final int depth;
+
+        SplittingWork(int depth) {
+            this.depth = depth;
+        }
+
+        @Override
+        public void run() {
+            if (depth > 0) {
+                threadPool.registerWork(new SplittingWork(depth - 1), new SplittingWork(depth - 1));
+            }
+            completed.incrementAndGet();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        threadPool = new ThreadPool(poolSize, mode);
+        Thread poolThread = new Thread(threadPool);
+        poolThread.setDaemon(true);
+        poolThread.start();
+    }
+
+    private void awaitCompleted(int count) {
+        while (completed.get() < count) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXTERNAL_TASKS)
+    public int external() {
+        completed.set(0);
+        for (int i = 0; i < EXTERNAL_TASKS; i++) {
+            threadPool.registerWork(new TinyWork());
+        }
+        awaitCompleted(EXTERNAL_TASKS);
+        return completed.get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCAL_TASKS)
+    public int local() {
+        completed.set(0);
+        threadPool.registerWork(new SplittingWork(DEPTH));
+        awaitCompleted(LOCAL_TASKS);
+        return completed.get();
+    }
+}
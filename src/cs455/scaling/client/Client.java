@@ -1,5 +1,9 @@
 package cs455.scaling.client;
 
+import cs455.scaling.digest.DigestStream;
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.message.HashMessage;
 import cs455.scaling.message.Message;
 
 import java.io.IOException;
@@ -9,6 +13,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Client {
 
@@ -17,9 +22,17 @@ public class Client {
     final private int serverPort;
     final private LinkedList<String> hashes;
     final private int messageRate;
+    final private HashAlgorithm algorithm;
+    // The length of each message sent as a length-prefixed frame, 0 to send 8 KB messages
+    final private long frameSize;
     private Integer totalSentCount = 0;
     private Integer totalReceivedCount = 0;
+    private Integer totalBusyCount = 0;
     private final Object counterLock = new Object();
+    // The bytes of a frame generated and hashed at once
+    private static final int FRAME_CHUNK = 64 * 1024;
+    private DigestStream frameDigest;
+    private byte[] frameChunk;
     /**
      * Get the port the connected server runs on
      * @return  -1 if connection setup failed,
@@ -36,7 +49,33 @@ public class Client {
      * @param messageRate   Rate at which to send messages to the Server (1/messageRate per second)
      */
     public Client(InetAddress serverAddress, int serverPort, int messageRate) {
+        this(serverAddress, serverPort, messageRate, HashAlgorithms.SHA1);
+    }
+
+    /**
+     * Create a new client that connects to a cs455.scaling.server.Server
+     * @param serverAddress Address server is running on
+     * @param serverPort    Port server is running on
+     * @param messageRate   Rate at which to send messages to the Server (1/messageRate per second)
+     * @param algorithm     The hash algorithm the Server should answer with
+     */
+    public Client(InetAddress serverAddress, int serverPort, int messageRate, HashAlgorithm algorithm) {
+        this(serverAddress, serverPort, messageRate, algorithm, 0);
+    }
+
+    /**
+     * Create a new client that connects to a cs455.scaling.server.Server
+     * @param serverAddress Address server is running on
+     * @param serverPort    Port server is running on
+     * @param messageRate   Rate at which to send messages to the Server (1/messageRate per second)
+     * @param algorithm     The hash algorithm the Server should answer with
+     * @param frameSize     The length of each message, sent as a length-prefixed frame, or 0 to send 8 KB messages
+     */
+    public Client(InetAddress serverAddress, int serverPort, int messageRate, HashAlgorithm algorithm,
+                  long frameSize) {
         hashes = new LinkedList<>();
+        this.algorithm = algorithm;
+        this.frameSize = frameSize;
         this.messageRate = 1000 / messageRate;
         serverConnectionChannel = connectToServer(serverAddress, serverPort);
         this.serverAddress = serverAddress;
@@ -48,7 +87,8 @@ public class Client {
     }
 
     /**
-     * Attempt to connect to a Server
+     * Attempt to connect to a Server, sending the id of the chosen hash algorithm as the handshake, with
+     * HashAlgorithms.FRAMED set when sending frames
      * @param serverAddress Address server is running on
      * @param serverPort    Port server is running on
      * @return              On success, a valid SocketChannel connecting to the server
@@ -59,6 +99,11 @@ public class Client {
         try {
             tempChannel = SocketChannel.open();
             tempChannel.connect(new InetSocketAddress(serverAddress, serverPort));
+            byte id = frameSize > 0 ? (byte) (algorithm.getId() | HashAlgorithms.FRAMED) : algorithm.getId();
+            ByteBuffer handshake = ByteBuffer.wrap(new byte[] { id });
+            while (handshake.hasRemaining()) {
+                tempChannel.write(handshake);
+            }
             tempChannel.configureBlocking(false);
         } catch (IOException e) {
             System.err.println("Client.class: Could not connect to server");
@@ -74,52 +119,99 @@ public class Client {
      * @throws IOException if connection fails
      */
     public void start() throws InterruptedException, IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(8192);
-        ByteBuffer readBuffer = ByteBuffer.allocateDirect(40);
+        int hashLength = algorithm.getLength() * 2;
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Message.SIZE);
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(hashLength);
         while (true) {
-            byteBuffer.clear();
-            Message message = new Message();
-            byteBuffer.put(message.getRawBytes());
-            byteBuffer.flip();
-            int written = 0;
             synchronized (counterLock) {
                 totalSentCount++;
             }
-            hashes.add(message.getHash().getHash());
-            while (written < 8192) {
-                written += serverConnectionChannel.write(byteBuffer);
+            if (frameSize > 0) {
+                hashes.add(sendFrame());
+            } else {
+                byteBuffer.clear();
+                Message message = new Message();
+                byteBuffer.put(message.getRawBytes());
+                byteBuffer.flip();
+                int written = 0;
+                hashes.add(message.getHash(algorithm).getHash());
+                while (written < Message.SIZE) {
+                    written += serverConnectionChannel.write(byteBuffer);
+                }
             }
             int read = 0;
-            while (read < 40) {
+            while (read < hashLength) {
                 readBuffer.clear();
                 int oneRead = serverConnectionChannel.read(readBuffer);
                 if (oneRead != 0) {
                     read += oneRead;
-                    while (read != 40) {
+                    while (read != hashLength) {
                         read += serverConnectionChannel.read(readBuffer);
                     }
                     synchronized (counterLock) {
                         totalReceivedCount++;
                     }
-                    byte[] hashArray = new byte[40];
+                    byte[] hashArray = new byte[hashLength];
                     readBuffer.flip();
                     readBuffer.get(hashArray);
                     String hash = new String(hashArray);
-                    hashes.remove(hash);
+                    if (hash.startsWith(HashMessage.BUSY_PREFIX)) {
+                        // The server shed one of the messages, most likely the oldest one still unanswered
+                        synchronized (counterLock) {
+                            totalBusyCount++;
+                        }
+                        hashes.poll();
+                    } else {
+                        hashes.remove(hash);
+                    }
                     read = 0;
                 } else {
-                    read = 40;
+                    read = hashLength;
                 }
             }
             Thread.sleep(messageRate);
         }
     }
 
+    /**
+     * Send a frame of frameSize random bytes, generated a chunk at a time and hashed as they are sent, so a frame
+     * of any size needs a single chunk of memory
+     * @return The hex hash the Server should answer with
+     * @throws IOException if the connection fails
+     */
+    private String sendFrame() throws IOException {
+        if (frameDigest == null) {
+            frameDigest = algorithm.newStream();
+            frameChunk = new byte[FRAME_CHUNK];
+        }
+        ByteBuffer header = ByteBuffer.allocate(4).putInt((int) frameSize);
+        header.flip();
+        writeFully(header);
+        long remaining = frameSize;
+        while (remaining > 0) {
+            int length = (int) Math.min(FRAME_CHUNK, remaining);
+            ThreadLocalRandom.current().nextBytes(frameChunk);
+            frameDigest.update(ByteBuffer.wrap(frameChunk, 0, length));
+            writeFully(ByteBuffer.wrap(frameChunk, 0, length));
+            remaining -= length;
+        }
+        HashMessage hash = new HashMessage(algorithm);
+        frameDigest.finish(hash.getDigest());
+        return hash.getHash();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            serverConnectionChannel.write(buffer);
+        }
+    }
+
     public Report getReport() {
         synchronized (counterLock) {
-            Report report = new Report(totalSentCount, totalReceivedCount);
+            Report report = new Report(totalSentCount, totalReceivedCount, totalBusyCount);
             totalSentCount = 0;
             totalReceivedCount = 0;
+            totalBusyCount = 0;
             return report;
         }
     }
@@ -128,23 +220,40 @@ public class Client {
         InetAddress serverAddress;
         int serverPort;
         int messageRate;
+        HashAlgorithm algorithm = HashAlgorithms.SHA1;
+        long frameSize = 0;
         if (args.length < 3) {
-            System.err.println("Required arguments: [server address] [server port] [message rate]");
+            System.err.println("Required arguments: [server address] [server port] [message rate] "
+                    + "[" + HashAlgorithms.names() + "] [frame bytes]");
             return;
         } else {
             try {
                 serverAddress = InetAddress.getByName(args[0]);
                 serverPort = Integer.parseInt(args[1]);
                 messageRate = Integer.parseInt(args[2]);
+                if (args.length > 3) {
+                    algorithm = HashAlgorithms.forName(args[3]);
+                    if (algorithm == null) {
+                        System.err.println("Hash algorithm must be one of " + HashAlgorithms.names());
+                        return;
+                    }
+                }
+                if (args.length > 4) {
+                    frameSize = Long.parseLong(args[4]);
+                    if (frameSize < 1 || frameSize > 0xFFFFFFFFL) {
+                        System.err.println("Frame bytes must be between 1 and 2^32 - 1");
+                        return;
+                    }
+                }
             } catch (NumberFormatException nfe) {
-                System.err.println("Server port and message rate must be specified as numbers");
+                System.err.println("Server port, message rate and frame bytes must be specified as numbers");
                 return;
             } catch (UnknownHostException uhe) {
                 System.err.println("Server by name " + args[0] + " does not exist");
                 return;
             }
         }
-        Client client = new Client(serverAddress, serverPort, messageRate);
+        Client client = new Client(serverAddress, serverPort, messageRate, algorithm, frameSize);
         if (client.getServerPort() > 0) {
             try {
                 new Thread(new Reporter(client)).start();
@@ -0,0 +1,280 @@
+package cs455.scaling.client;
+
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.message.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+/**
+ * <p>A fixed set of 8 KB messages and their hashes, prepared before a run so that sending costs no random number
+ * generation or hashing, and two runs send the same bytes. A corpus is either generated in memory from a seed, or a
+ * file of messages back to back (a server's capture, or one written by write) that is memory-mapped and sent straight
+ * from the file with FileChannel.transferTo.</p>
+ * <p>The digests of a corpus file are kept next to it, in a file named after the corpus and the algorithm (for
+ * example corpus.sha1). That file starts with the size and modification time the corpus file had when the digests
+ * were computed, and the digests are computed again when the file is missing or either of them has changed.</p>
+ * <p>A reply is matched to its message by the first 16 hex characters of the hash (every character of shorter
+ * hashes) through an open addressing table, so matching takes constant time and creates no garbage. Messages whose
+ * keys repeat an earlier message's are left out, so the corpus may hold fewer messages than its source.</p>
+ */
+public class Corpus {
+
+    // Bytes of a digest used as the key of its reply, 16 hex characters
+    private static final int KEY_BYTES = 8;
+    // The most messages mapped from one file, which has to fit in a single MappedByteBuffer
+    private static final int MAX_FRAMES = Integer.MAX_VALUE / Message.SIZE;
+    // The size and modification time of the corpus file at the start of a digest file
+    private static final int DIGEST_HEADER = 16;
+
+    private final ByteBuffer messages;
+    private final FileChannel file;
+    private final int hexLength;
+
+    // The frame of messages each message of the corpus is in
+    private final int[] frames;
+    private final int size;
+
+    // Open addressing table from reply key to message index
+    private final long[] keys;
+    private final int[] indexes;
+    private final int shift;
+
+    /**
+     * Generate a corpus in memory
+     * @param size The number of messages
+     * @param algorithm The algorithm the server will answer with
+     * @param seed The seed of the random bytes
+     */
+    public Corpus(int size, HashAlgorithm algorithm, long seed) {
+        this(generate(size, seed), null, algorithm, null);
+    }
+
+    /**
+     * @param messages The messages back to back
+     * @param file The file the messages are mapped from, or null if they are in memory
+     * @param algorithm The algorithm the server will answer with
+     * @param digests The digest of every message back to back, or null to compute them
+     */
+    private Corpus(ByteBuffer messages, FileChannel file, HashAlgorithm algorithm, ByteBuffer digests) {
+        this.messages = messages;
+        this.file = file;
+        hexLength = algorithm.getLength() * 2;
+        if (digests == null) {
+            digests = digest(messages, algorithm);
+        }
+        int frameCount = messages.capacity() / Message.SIZE;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, frameCount * 4 - 1));
+        keys = new long[1 << bits];
+        indexes = new int[1 << bits];
+        shift = 64 - bits;
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = -1;
+        }
+
+        int[] kept = new int[frameCount];
+        int index = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            long key = 0;
+            for (int i = 0; i < Math.min(KEY_BYTES, algorithm.getLength()); i++) {
+                key = (key << 8) | (digests.get(frame * algorithm.getLength() + i) & 0xff);
+            }
+            if (indexOf(key) < 0) {
+                insert(key, index);
+                kept[index++] = frame;
+            }
+        }
+        size = index;
+        frames = kept;
+    }
+
+    /**
+     * Memory-map a corpus file, reading its digests from the file next to it, or computing and writing them there.
+     * Bytes after the last full message are ignored
+     * @param path A file of messages back to back
+     * @param algorithm The algorithm the server will answer with
+     * @return The corpus
+     * @throws IOException If a file can not be read or the digests can not be written
+     */
+    public static Corpus open(String path, HashAlgorithm algorithm) throws IOException {
+        FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        long frameCount = Math.min(MAX_FRAMES, file.size() / Message.SIZE);
+        MappedByteBuffer messages = file.map(FileChannel.MapMode.READ_ONLY, 0, frameCount * Message.SIZE);
+
+        Path digestPath = Paths.get(path + "." + algorithm.getName());
+        long digestLength = frameCount * algorithm.getLength();
+        ByteBuffer header = ByteBuffer.allocate(DIGEST_HEADER);
+        header.putLong(file.size()).putLong(Files.getLastModifiedTime(Paths.get(path)).toMillis()).flip();
+        ByteBuffer digests;
+        try (FileChannel digestFile = FileChannel.open(digestPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (!header.equals(readHeader(digestFile, DIGEST_HEADER + digestLength))) {
+                ByteBuffer computed = digest(messages, algorithm);
+                digestFile.truncate(0);
+                while (header.hasRemaining()) {
+                    digestFile.write(header, header.position());
+                }
+                while (computed.hasRemaining()) {
+                    digestFile.write(computed, DIGEST_HEADER + computed.position());
+                }
+            }
+            digests = digestFile.map(FileChannel.MapMode.READ_ONLY, DIGEST_HEADER, digestLength);
+        }
+        return new Corpus(messages, file, algorithm, digests);
+    }
+
+    /**
+     * Read the header of a digest file
+     * @param digestFile The digest file
+     * @param length The length the file should have
+     * @return The header, or null if the file has another length
+     */
+    private static ByteBuffer readHeader(FileChannel digestFile, long length) throws IOException {
+        if (digestFile.size() != length) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(DIGEST_HEADER);
+        while (header.hasRemaining()) {
+            if (digestFile.read(header, header.position()) < 0) {
+                return null;
+            }
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Write a corpus file of random messages. The bytes are the same as those of an in-memory corpus generated from
+     * the same seed
+     * @param path The file to write
+     * @param size The number of messages
+     * @param seed The seed of the random bytes
+     * @throws IOException If the file can not be written
+     */
+    public static void write(String path, int size, long seed) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SplittableRandom random = new SplittableRandom(seed);
+            byte[] bytes = new byte[Message.SIZE];
+            for (int i = 0; i < size; i++) {
+                random.nextBytes(bytes);
+                ByteBuffer frame = ByteBuffer.wrap(bytes);
+                while (frame.hasRemaining()) {
+                    file.write(frame);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer generate(int size, long seed) {
+        ByteBuffer messages = ByteBuffer.allocateDirect(size * Message.SIZE);
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[] bytes = new byte[Message.SIZE];
+        for (int i = 0; i < size; i++) {
+            random.nextBytes(bytes);
+            messages.put(bytes);
+        }
+        messages.clear();
+        return messages;
+    }
+
+    /**
+     * Hash every message
+     * @return The digests back to back, flipped
+     */
+    private static ByteBuffer digest(ByteBuffer messages, HashAlgorithm algorithm) {
+        int frameCount = messages.capacity() / Message.SIZE;
+        ByteBuffer digests = ByteBuffer.allocate(frameCount * algorithm.getLength());
+        byte[] digest = new byte[algorithm.getLength()];
+        ByteBuffer frame = messages.duplicate();
+        for (int i = 0; i < frameCount; i++) {
+            frame.limit((i + 1) * Message.SIZE).position(i * Message.SIZE);
+            algorithm.digest(frame, digest);
+            digests.put(digest);
+        }
+        digests.flip();
+        return digests;
+    }
+
+    /**
+     * @return The number of messages
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The length of a reply in bytes
+     */
+    public int getHexLength() {
+        return hexLength;
+    }
+
+    /**
+     * @return The file the messages are mapped from, or null if the corpus is in memory
+     */
+    public FileChannel getFile() {
+        return file;
+    }
+
+    /**
+     * @return A new view of every message back to back, which a connection can move over independently
+     */
+    public ByteBuffer duplicate() {
+        return messages.duplicate();
+    }
+
+    /**
+     * @param index The index of a message
+     * @return Where the message starts, in the buffer returned by duplicate and in the file
+     */
+    public long getPosition(int index) {
+        return (long) frames[index] * Message.SIZE;
+    }
+
+    /**
+     * Find the message a reply answers
+     * @param reply A buffer holding the reply
+     * @param offset The index of the reply's first byte
+     * @return The index of the message, or -1 if the reply matches none
+     */
+    public int indexOf(ByteBuffer reply, int offset) {
+        long key = 0;
+        for (int i = 0; i < Math.min(KEY_BYTES * 2, hexLength); i++) {
+            int c = reply.get(offset + i);
+            key = (key << 4) | (c <= '9' ? c - '0' : (c | 0x20) - 'a' + 10) & 0xf;
+        }
+        return indexOf(key);
+    }
+
+    private int indexOf(long key) {
+        int slot = slot(key);
+        while (indexes[slot] >= 0) {
+            if (keys[slot] == key) {
+                return indexes[slot];
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        return -1;
+    }
+
+    private void insert(long key, int index) {
+        int slot = slot(key);
+        while (indexes[slot] >= 0) {
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        keys[slot] = key;
+        indexes[slot] = index;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+}
@@ -0,0 +1,210 @@
+package cs455.scaling.client;
+
+import cs455.scaling.message.HashMessage;
+import cs455.scaling.message.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <p>One connection of the LoadGenerator. Messages are due on a fixed schedule, one every interval, whether or not
+ * earlier messages have been answered. A message that can not go out on time (because the socket is full, or a
+ * window of messages is already unanswered) is sent as soon as it can be, and keeps its intended send time, so the
+ * delay is part of its latency instead of being left out of the measurements.</p>
+ * <p>The message with sequence number s is message (offset + s) of the corpus and its send times are kept in slot
+ * s % window, so a reply is matched to its sequence number, and the sequence number to its slot, in constant time.
+ * Replies do not have to arrive in order. The window is never larger than the corpus, so no two unanswered messages
+ * are the same.</p>
+ * <p>Messages of an in-memory corpus are written from a view of its buffer. Messages of a corpus file go from the
+ * file to the socket with FileChannel.transferTo, without being copied through the Java heap.</p>
+ * <p>Only used by the thread of the LoadReactor that owns it.</p>
+ */
+class LoadConnection {
+
+    // The most messages that may be unanswered at once, fewer if the corpus is smaller
+    static final int WINDOW = 128;
+
+    private final SocketChannel channel;
+    private final Corpus corpus;
+    private final int offset;
+    private final long interval;
+    private final int hexLength;
+    private final int window;
+
+    private final ByteBuffer handshake;
+    private final ByteBuffer input;
+    // The message being written: a view of the corpus, or its file. Bytes from outputPosition to outputEnd are left
+    private final ByteBuffer output;
+    private final FileChannel file;
+    private long outputPosition;
+    private long outputEnd;
+
+    private final long[] intended;
+    private final long[] sent;
+    private final boolean[] outstanding;
+    private long nextSequence;
+    private long oldest;
+
+    private long nextIntended;
+    private SelectionKey key;
+
+    /**
+     * @param channel A connected channel. The handshake has not been sent yet
+     * @param corpus The messages to send
+     * @param offset The corpus index of the first message
+     * @param algorithmId The handshake byte
+     * @param interval Nanoseconds between messages
+     * @param start The System.nanoTime() the first message is due
+     */
+    LoadConnection(SocketChannel channel, Corpus corpus, int offset, byte algorithmId, long interval, long start) {
+        this.channel = channel;
+        this.corpus = corpus;
+        this.offset = offset;
+        this.interval = interval;
+        hexLength = corpus.getHexLength();
+        window = Math.min(WINDOW, corpus.size());
+        handshake = ByteBuffer.wrap(new byte[] { algorithmId });
+        file = corpus.getFile();
+        output = file == null ? corpus.duplicate() : null;
+        input = ByteBuffer.allocateDirect(hexLength * window);
+        intended = new long[window];
+        sent = new long[window];
+        outstanding = new boolean[window];
+        nextIntended = start;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return The System.nanoTime() the next message is due
+     */
+    long getNextIntended() {
+        return nextIntended;
+    }
+
+    /**
+     * @return True while a message is partly written
+     */
+    boolean hasOutput() {
+        return handshake.hasRemaining() || outputPosition < outputEnd;
+    }
+
+    /**
+     * @return True if sending has to wait for the socket to drain or for replies to open the window
+     */
+    boolean isBlocked() {
+        return hasOutput() || nextSequence - oldest >= window;
+    }
+
+    /**
+     * Send every message that is due, until the socket is full or the window is
+     * @param now The current System.nanoTime()
+     * @param reactor Counts the messages sent
+     * @throws IOException If the write fails
+     */
+    void send(long now, LoadReactor reactor) throws IOException {
+        if (handshake.hasRemaining() && channel.write(handshake) == 0) {
+            return;
+        }
+        if (outputPosition < outputEnd && writeOutput() == 0) {
+            return;
+        }
+        while (outputPosition == outputEnd && nextIntended <= now && nextSequence - oldest < window) {
+            int slot = (int) (nextSequence % window);
+            intended[slot] = nextIntended;
+            sent[slot] = now;
+            outstanding[slot] = true;
+            outputPosition = corpus.getPosition((int) ((offset + nextSequence) % corpus.size()));
+            outputEnd = outputPosition + Message.SIZE;
+            nextSequence++;
+            nextIntended += interval;
+            reactor.sent();
+            writeOutput();
+        }
+    }
+
+    /**
+     * Write as much of the current message as the socket takes
+     * @return The number of bytes written
+     */
+    private long writeOutput() throws IOException {
+        long written;
+        if (file != null) {
+            written = file.transferTo(outputPosition, outputEnd - outputPosition, channel);
+        } else {
+            output.limit((int) outputEnd).position((int) outputPosition);
+            written = channel.write(output);
+        }
+        outputPosition += written;
+        return written;
+    }
+
+    /**
+     * Read and match every complete reply waiting on the socket
+     * @param now The current System.nanoTime()
+     * @param reactor Records the latencies and counts the replies
+     * @return The number of bytes read, or -1 if the server closed the connection
+     * @throws IOException If the read fails
+     */
+    int read(long now, LoadReactor reactor) throws IOException {
+        int read = channel.read(input);
+        if (read <= 0) {
+            return read;
+        }
+        input.flip();
+        while (input.remaining() >= hexLength) {
+            int position = input.position();
+            if (input.get(position) == HashMessage.BUSY_PREFIX.charAt(0)
+                    && input.get(position + 1) == HashMessage.BUSY_PREFIX.charAt(1)) {
+                // The server shed one of the messages, most likely the oldest one still unanswered
+                if (oldest < nextSequence) {
+                    answer(oldest, now, reactor, false);
+                }
+                reactor.busy();
+            } else {
+                int index = corpus.indexOf(input, position);
+                long sequence = oldest + Math.floorMod(index - offset - oldest, (long) corpus.size());
+                if (index < 0 || sequence >= nextSequence || !outstanding[(int) (sequence % window)]) {
+                    reactor.unmatched();
+                } else {
+                    answer(sequence, now, reactor, true);
+                }
+            }
+            input.position(position + hexLength);
+        }
+        input.compact();
+        return read;
+    }
+
+    private void answer(long sequence, long now, LoadReactor reactor, boolean record) {
+        int slot = (int) (sequence % window);
+        outstanding[slot] = false;
+        if (record) {
+            reactor.received(now - intended[slot], now - sent[slot]);
+        }
+        while (oldest < nextSequence && !outstanding[(int) (oldest % window)]) {
+            oldest++;
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("LoadConnection: Could not close channel");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package cs455.scaling.client;
+
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.utils.Histogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * <p>An open loop load generator: many connections from one JVM, driven by a few LoadReactors, that together send a
+ * fixed number of messages per second no matter how fast the server answers. Connection i sends its first message
+ * i / rate seconds after the start, and then one every connections / rate seconds.</p>
+ * <p>Messages come from a Corpus generated before the run, or from a corpus file (see Replay), so the bytes each
+ * connection sends only depend on the seed or the file. A line of counts is printed every REPORT_INTERVAL seconds,
+ * and the latency percentiles of the whole run at the end. The latencies are measured from when each message was
+ * due, so a slow server can not hide its stalls by holding up the messages that would have measured them.</p>
+ */
+public class LoadGenerator {
+
+    private static final int REPORT_INTERVAL = 5;
+    private static final int CORPUS_SIZE = 1024;
+    private static final long SEED = 455;
+
+    private final LoadReactor[] reactors;
+    private final int seconds;
+    private final long totalRate;
+
+    /**
+     * Connect every connection and hand them out to the reactors
+     * @param address The server's address
+     * @param port The server's port
+     * @param connections The number of connections to open
+     * @param rate Messages per second over all connections
+     * @param seconds How long to send for
+     * @param reactorCount The number of reactor threads
+     * @param algorithm The hash algorithm the server should answer with
+     * @param corpus The messages to send, hashed with algorithm
+     * @throws IOException If a connection can not be opened
+     */
+    public LoadGenerator(InetAddress address, int port, int connections, long rate, int seconds, int reactorCount,
+                         HashAlgorithm algorithm, Corpus corpus) throws IOException {
+        this.seconds = seconds;
+        totalRate = rate;
+        reactors = new LoadReactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new LoadReactor(Selector.open());
+        }
+
+        SocketChannel[] channels = new SocketChannel[connections];
+        for (int i = 0; i < connections; i++) {
+            channels[i] = SocketChannel.open(new InetSocketAddress(address, port));
+            channels[i].setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channels[i].configureBlocking(false);
+        }
+        long spacing = 1_000_000_000L / rate;
+        long interval = spacing * connections;
+        long start = System.nanoTime() + 100_000_000L;
+        for (int i = 0; i < connections; i++) {
+            int offset = (int) ((long) i * LoadConnection.WINDOW % corpus.size());
+            reactors[i % reactorCount].add(new LoadConnection(channels[i], corpus, offset, algorithm.getId(),
+                    interval, start + i * spacing));
+        }
+    }
+
+    /**
+     * Run the reactors for the configured time, printing counts as it goes and a latency summary at the end
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void run() throws InterruptedException {
+        Thread[] threads = new Thread[reactors.length];
+        for (int i = 0; i < reactors.length; i++) {
+            threads[i] = new Thread(reactors[i], "LoadReactor-" + i);
+            threads[i].start();
+        }
+        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm:ss");
+        long sent = 0;
+        long received = 0;
+        long busy = 0;
+        long unmatched = 0;
+        for (int elapsed = 0; elapsed < seconds; elapsed += REPORT_INTERVAL) {
+            int sleep = Math.min(REPORT_INTERVAL, seconds - elapsed);
+            Thread.sleep(sleep * 1000L);
+            long intervalSent = 0;
+            long intervalReceived = 0;
+            long intervalBusy = 0;
+            for (LoadReactor reactor : reactors) {
+                intervalSent += reactor.takeSent();
+                intervalReceived += reactor.takeReceived();
+                intervalBusy += reactor.takeBusy();
+                unmatched += reactor.takeUnmatched();
+            }
+            sent += intervalSent;
+            received += intervalReceived;
+            busy += intervalBusy;
+            System.out.println("[" + dtf.format(LocalDateTime.now()) + "] Sent: " + intervalSent / sleep
+                    + "/s, Received: " + intervalReceived / sleep + "/s"
+                    + (intervalBusy > 0 ? ", Busy: " + intervalBusy / sleep + "/s" : ""));
+        }
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i].stop();
+            threads[i].join();
+        }
+
+        Histogram latencies = new Histogram();
+        Histogram serviceTimes = new Histogram();
+        for (LoadReactor reactor : reactors) {
+            latencies.add(reactor.getLatencies());
+            serviceTimes.add(reactor.getServiceTimes());
+        }
+        System.out.println("Target rate: " + totalRate + "/s, achieved: " + sent / Math.max(1, seconds)
+                + "/s, Sent: " + sent + ", Received: " + received + ", Busy: " + busy + ", Unmatched: " + unmatched
+                + ", Unanswered: " + (sent - received - busy));
+        System.out.println("Latency (from intended send):  " + summary(latencies));
+        System.out.println("Latency (from actual send):    " + summary(serviceTimes));
+    }
+
+    private static String summary(Histogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "no replies";
+        }
+        return "p50 " + millis(histogram.getValueAtPercentile(50))
+                + ", p90 " + millis(histogram.getValueAtPercentile(90))
+                + ", p99 " + millis(histogram.getValueAtPercentile(99))
+                + ", p99.9 " + millis(histogram.getValueAtPercentile(99.9))
+                + ", max " + millis(histogram.getMax())
+                + ", mean " + millis(histogram.getSum() / histogram.getCount());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+
+    public static void main(String[] args) {
+        start(args, null);
+    }
+
+    /**
+     * Parse the load generator's arguments and run it
+     * @param args [server address] [server port] [connections] [messages per second] [seconds] [reactors] [algorithm]
+     * @param corpusPath A corpus file to send from, or null to generate a corpus
+     */
+    static void start(String[] args, String corpusPath) {
+        if (args.length < 4) {
+            System.err.println("Required arguments: [server address] [server port] [connections] "
+                    + "[messages per second] [seconds] [reactors] [" + HashAlgorithms.names() + "]");
+            return;
+        }
+        InetAddress address;
+        int port;
+        int connections;
+        long rate;
+        int seconds = 30;
+        int reactorCount = 2;
+        HashAlgorithm algorithm = HashAlgorithms.SHA1;
+        try {
+            address = InetAddress.getByName(args[0]);
+            port = Integer.parseInt(args[1]);
+            connections = Integer.parseInt(args[2]);
+            rate = Long.parseLong(args[3]);
+            if (args.length > 4) {
+                seconds = Integer.parseInt(args[4]);
+            }
+            if (args.length > 5) {
+                reactorCount = Integer.parseInt(args[5]);
+            }
+            if (args.length > 6) {
+                algorithm = HashAlgorithms.forName(args[6]);
+                if (algorithm == null) {
+                    System.err.println("Hash algorithm must be one of " + HashAlgorithms.names());
+                    return;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.err.println("Server port, connections, rate, seconds and reactors must be specified as numbers");
+            return;
+        } catch (UnknownHostException uhe) {
+            System.err.println("Server by name " + args[0] + " does not exist");
+            return;
+        }
+        if (connections < 1 || rate < 1 || seconds < 1 || reactorCount < 1 || rate > 1_000_000_000L) {
+            System.err.println("Connections, rate, seconds and reactors must be positive, and the rate at most 10^9");
+            return;
+        }
+        Corpus corpus;
+        try {
+            corpus = corpusPath == null ? new Corpus(CORPUS_SIZE, algorithm, SEED) : Corpus.open(corpusPath, algorithm);
+        } catch (IOException e) {
+            System.err.println("LoadGenerator: Could not open corpus " + corpusPath + ": " + e.getMessage());
+            return;
+        }
+        if (corpus.size() == 0) {
+            System.err.println("Corpus " + corpusPath + " holds no complete messages");
+            return;
+        }
+        try {
+            new LoadGenerator(address, port, connections, rate, seconds, Math.min(reactorCount, connections),
+                    algorithm, corpus).run();
+        } catch (IOException e) {
+            System.err.println("LoadGenerator: Could not connect to server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println("LoadGenerator: Interrupted");
+        }
+    }
+}
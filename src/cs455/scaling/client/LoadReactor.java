@@ -0,0 +1,195 @@
+package cs455.scaling.client;
+
+import cs455.scaling.utils.Histogram;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Drives a share of the LoadGenerator's connections from one thread and one Selector.</p>
+ * <p>Connections that can send are kept in a queue ordered by when their next message is due. A connection that
+ * has to wait for its socket or its window leaves the queue, and the reads or writes that unblock it put it back.
+ * The selector sleeps until the next message is due, or spins with selectNow when that is less than a millisecond
+ * away, since select can not time out more precisely.</p>
+ * <p>Two latencies are recorded for every reply: from the time the message was due, which is corrected for
+ * coordinated omission and is the one to report, and from the time it was actually written.</p>
+ */
+class LoadReactor implements Runnable {
+
+    private final Selector selector;
+    private final ArrayList<LoadConnection> connections;
+    private final PriorityQueue<LoadConnection> schedule;
+    private volatile boolean stopped;
+
+    private final LongAdder sent;
+    private final LongAdder received;
+    private final LongAdder busy;
+    private final LongAdder unmatched;
+    private final Histogram latencies;
+    private final Histogram serviceTimes;
+
+    /**
+     * @param selector The selector the connections will be registered to
+     */
+    LoadReactor(Selector selector) {
+        this.selector = selector;
+        connections = new ArrayList<>();
+        schedule = new PriorityQueue<>((a, b) -> Long.compare(a.getNextIntended(), b.getNextIntended()));
+        sent = new LongAdder();
+        received = new LongAdder();
+        busy = new LongAdder();
+        unmatched = new LongAdder();
+        latencies = new Histogram();
+        serviceTimes = new Histogram();
+    }
+
+    /**
+     * Give a connection to the reactor. Must be called before the reactor's thread is started
+     * @param connection A connection whose channel is in non-blocking mode
+     */
+    void add(LoadConnection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Stop sending and close every connection
+     */
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (LoadConnection connection : connections) {
+                connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+                schedule.add(connection);
+            }
+            while (!stopped) {
+                LoadConnection next = schedule.peek();
+                long wait = next == null ? Long.MAX_VALUE : next.getNextIntended() - System.nanoTime();
+                if (wait >= 1_000_000) {
+                    selector.select(next == null ? 0 : wait / 1_000_000);
+                } else {
+                    selector.selectNow();
+                }
+                long now = System.nanoTime();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    handle(key, now);
+                }
+                while ((next = schedule.peek()) != null && next.getNextIntended() <= now) {
+                    schedule.poll();
+                    send(next, now);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("LoadReactor: IOException from Selector");
+        }
+        for (LoadConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void handle(SelectionKey key, long now) {
+        LoadConnection connection = (LoadConnection) key.attachment();
+        boolean blocked = connection.isBlocked();
+        try {
+            if (key.isReadable() && connection.read(now, this) < 0) {
+                System.err.println("LoadReactor: Server closed a connection");
+                close(connection);
+                return;
+            }
+            if (blocked && key.isValid() && !connection.isBlocked() || key.isValid() && key.isWritable()) {
+                send(connection, now);
+            }
+        } catch (IOException e) {
+            System.err.println("LoadReactor: " + e.getMessage());
+            close(connection);
+        }
+    }
+
+    /**
+     * Send whatever is due on a connection that is not in the schedule, then put it back in the schedule, or wait
+     * for its socket if it has a partly written message
+     */
+    private void send(LoadConnection connection, long now) {
+        try {
+            connection.send(now, this);
+        } catch (IOException e) {
+            System.err.println("LoadReactor: " + e.getMessage());
+            close(connection);
+            return;
+        }
+        SelectionKey key = connection.getKey();
+        key.interestOps(connection.hasOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        if (!connection.isBlocked()) {
+            schedule.add(connection);
+        }
+    }
+
+    private void close(LoadConnection connection) {
+        connection.getKey().cancel();
+        schedule.remove(connection);
+        connection.close();
+    }
+
+    void sent() {
+        sent.increment();
+    }
+
+    void received(long latency, long serviceTime) {
+        received.increment();
+        latencies.record(latency);
+        serviceTimes.record(serviceTime);
+    }
+
+    void busy() {
+        busy.increment();
+    }
+
+    void unmatched() {
+        unmatched.increment();
+    }
+
+    /**
+     * Take the number of messages sent since the last call, and reset it
+     */
+    long takeSent() {
+        return sent.sumThenReset();
+    }
+
+    long takeReceived() {
+        return received.sumThenReset();
+    }
+
+    long takeBusy() {
+        return busy.sumThenReset();
+    }
+
+    long takeUnmatched() {
+        return unmatched.sumThenReset();
+    }
+
+    /**
+     * @return Latencies from the time each message was due
+     */
+    Histogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return Latencies from the time each message was written
+     */
+    Histogram getServiceTimes() {
+        return serviceTimes;
+    }
+}
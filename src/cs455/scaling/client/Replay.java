@@ -0,0 +1,67 @@
+package cs455.scaling.client;
+
+import cs455.scaling.digest.HashAlgorithms;
+
+import java.io.IOException;
+
+/**
+ * <p>Replays a corpus file against a server: a capture written by a server started with --capture, or a file of
+ * random messages written by this class. It runs the LoadGenerator with the file's messages instead of generated
+ * ones, so runs against the same file send the same bytes, and the messages go from the page cache to the socket
+ * without being copied or hashed by the client.</p>
+ * <p>Replies are matched to messages by their hash, so a message whose bytes repeat an earlier one in the file is
+ * skipped, and a capture of repeated payloads replays each distinct message once per pass over the file.</p>
+ * <pre>
+ * Replay [server address] [server port] [corpus file] [connections] [messages per second] [seconds] [reactors] [algorithm]
+ * Replay --generate [corpus file] [messages] [seed]
+ * </pre>
+ */
+public class Replay {
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--generate")) {
+            generate(args);
+            return;
+        }
+        if (args.length < 6) {
+            System.err.println("Required arguments: [server address] [server port] [corpus file] [connections] "
+                    + "[messages per second] [seconds] [reactors] [" + HashAlgorithms.names() + "]\n"
+                    + "                or: --generate [corpus file] [messages] [seed]\n"
+                    + "Messages that repeat an earlier message of the corpus file are skipped");
+            return;
+        }
+        String[] loadArgs = new String[args.length - 1];
+        loadArgs[0] = args[0];
+        loadArgs[1] = args[1];
+        System.arraycopy(args, 3, loadArgs, 2, args.length - 3);
+        LoadGenerator.start(loadArgs, args[2]);
+    }
+
+    /**
+     * Write a corpus file of random messages
+     * @param args --generate [corpus file] [messages] [seed]
+     */
+    private static void generate(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Required arguments: --generate [corpus file] [messages] [seed]");
+            return;
+        }
+        int messages;
+        long seed = 455;
+        try {
+            messages = Integer.parseInt(args[2]);
+            if (args.length > 3) {
+                seed = Long.parseLong(args[3]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Messages and seed must be specified as numbers");
+            return;
+        }
+        try {
+            Corpus.write(args[1], messages, seed);
+            System.out.println("Wrote " + messages + " messages to " + args[1]);
+        } catch (IOException e) {
+            System.err.println("Replay: Could not write " + args[1] + ": " + e.getMessage());
+        }
+    }
+}
@@ -7,18 +7,26 @@ public class Report {
 
     private final int sent;
     private final int received;
+    // Replies that were the server's busy code instead of a hash
+    private final int busy;
     private final String time;
 
     public Report(int sent, int received) {
+        this(sent, received, 0);
+    }
+
+    public Report(int sent, int received, int busy) {
         this.sent = sent;
         this.received = received;
+        this.busy = busy;
         DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm:ss");
         LocalDateTime now = LocalDateTime.now();
         time = dtf.format(now);
     }
 
     public String toString() {
-        return "[" + time + "] Total Sent Count: " + sent + ", Total Received Count: " + received;
+        return "[" + time + "] Total Sent Count: " + sent + ", Total Received Count: " + received
+                + (busy > 0 ? ", Busy Count: " + busy : "");
     }
 
 }
@@ -0,0 +1,59 @@
+package cs455.scaling.digest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A HashAlgorithm that looks each message up in a DigestCache before hashing it, and adds what it hashes. It has
+ * the id, name and length of the algorithm it wraps, so clients and reports can not tell the two apart.
+ */
+class CachingHashAlgorithm implements HashAlgorithm {
+
+    private final HashAlgorithm algorithm;
+    private final DigestCache cache;
+
+    /**
+     * @param algorithm The algorithm to compute digests with on a miss
+     * @param cache The cache to look digests up in
+     */
+    CachingHashAlgorithm(HashAlgorithm algorithm, DigestCache cache) {
+        this.algorithm = algorithm;
+        this.cache = cache;
+    }
+
+    @Override
+    public byte getId() {
+        return algorithm.getId();
+    }
+
+    @Override
+    public String getName() {
+        return algorithm.getName();
+    }
+
+    @Override
+    public int getLength() {
+        return algorithm.getLength();
+    }
+
+    /**
+     * Messages hashed in pieces are not cached, since they are only known in full once they have been hashed
+     * @return A stream of the wrapped algorithm
+     */
+    @Override
+    public DigestStream newStream() {
+        return algorithm.newStream();
+    }
+
+    @Override
+    public void digest(ByteBuffer data, byte[] out) {
+        int position = data.position();
+        long fingerprint = XxHash64Algorithm.hash(data);
+        data.position(position);
+        if (!cache.get(fingerprint, algorithm.getId(), data, out)) {
+            algorithm.digest(data, out);
+            data.position(position);
+            cache.put(fingerprint, algorithm.getId(), data, out, algorithm.getLength());
+        }
+        data.position(data.limit());
+    }
+}
@@ -0,0 +1,64 @@
+package cs455.scaling.digest;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C (Castagnoli), for workloads that only need to catch corruption. The JVM computes it with the CPU's CRC
+ * instructions where they exist. The 4 byte digest is the checksum in big endian order.
+ */
+public class Crc32cAlgorithm implements HashAlgorithm {
+
+    private final ThreadLocal<CRC32C> checksums = ThreadLocal.withInitial(CRC32C::new);
+
+    @Override
+    public byte getId() {
+        return HashAlgorithms.CRC32C_ID;
+    }
+
+    @Override
+    public String getName() {
+        return "crc32c";
+    }
+
+    @Override
+    public int getLength() {
+        return 4;
+    }
+
+    @Override
+    public void digest(ByteBuffer data, byte[] out) {
+        CRC32C crc = checksums.get();
+        crc.reset();
+        crc.update(data);
+        write(crc, out);
+    }
+
+    @Override
+    public DigestStream newStream() {
+        CRC32C crc = new CRC32C();
+        return new DigestStream() {
+            @Override
+            public void update(ByteBuffer data) {
+                crc.update(data);
+            }
+
+            @Override
+            public void finish(byte[] out) {
+                write(crc, out);
+                crc.reset();
+            }
+        };
+    }
+
+    /**
+     * Write a checksum in big endian order
+     */
+    private static void write(CRC32C crc, byte[] out) {
+        int value = (int) crc.getValue();
+        out[0] = (byte) (value >>> 24);
+        out[1] = (byte) (value >>> 16);
+        out[2] = (byte) (value >>> 8);
+        out[3] = (byte) value;
+    }
+}
@@ -0,0 +1,355 @@
+package cs455.scaling.digest;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A bounded cache of digests, keyed by the content of the message they were computed from, so a message the
+ * server has already hashed costs a lookup instead of a digest. Entries are found by the message's xxHash64
+ * fingerprint and confirmed by comparing every byte with a stored copy of the message, so a fingerprint collision is
+ * a miss, never a wrong answer.</p>
+ * <p>The memory cap counts the stored copy, the digest and a fixed overhead for each entry. It is split evenly
+ * between SEGMENTS segments, chosen by fingerprint, each with its own lock, so workers hashing different messages
+ * rarely wait on each other. The byte comparison happens outside the lock.</p>
+ * <p>Each segment evicts with W-TinyLFU. New entries go into a small LRU window, 1% of the segment's capacity.
+ * Entries pushed out of the window become candidates for the main space, an SLRU split into a probation and a
+ * protected part. A candidate only stays in the main space if it has been asked for more often than the entry it
+ * would push out. How often an entry was asked for is estimated by a count-min sketch that halves its counters
+ * periodically, so old popularity fades. A burst of one-off messages therefore cannot flush out the messages that
+ * are repeated all the time. Eviction is by weight, so entries of any size are charged for what they hold.</p>
+ * <p>Only slow algorithms are worth caching, since the fingerprint costs about as much as a fast hash. forId hands
+ * out a caching wrapper for the MessageDigest algorithms and the plain algorithm for the rest.</p>
+ */
+public class DigestCache {
+
+    private static final int SEGMENTS = 16;
+    // Bytes charged for an entry on top of its message and digest: the node, the array headers and the map entry
+    static final int ENTRY_OVERHEAD = 96;
+
+    private final Segment[] segments;
+    private final long capacity;
+    private final HashAlgorithm[] algorithms;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * @param capacity The most bytes the cache may hold
+     */
+    public DigestCache(long capacity) {
+        this.capacity = capacity;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity / SEGMENTS);
+        }
+        algorithms = new HashAlgorithm[HashAlgorithms.maxId() + 1];
+        for (int id = 1; id < algorithms.length; id++) {
+            HashAlgorithm algorithm = HashAlgorithms.forId((byte) id);
+            algorithms[id] = algorithm instanceof MessageDigestAlgorithm ? new CachingHashAlgorithm(algorithm, this)
+                    : algorithm;
+        }
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+    }
+
+    /**
+     * Look up an algorithm by id, like HashAlgorithms.forId, wrapped so its digests go through this cache if it is
+     * slow enough to be worth caching
+     * @param id The byte a client sent
+     * @return The algorithm with that id, or null if there is none
+     */
+    public HashAlgorithm forId(byte id) {
+        return id > 0 && id < algorithms.length ? algorithms[id] : null;
+    }
+
+    /**
+     * Find the digest of a message
+     * @param fingerprint The message's xxHash64
+     * @param id The id of the algorithm
+     * @param message The message, between its position and limit. Neither is moved
+     * @param out Where the digest is copied to on a hit
+     * @return True on a hit
+     */
+    boolean get(long fingerprint, byte id, ByteBuffer message, byte[] out) {
+        long key = fingerprint ^ id;
+        Node node = segment(key).lookup(key);
+        if (node != null && node.id == id && ByteBuffer.wrap(node.message).equals(message)) {
+            System.arraycopy(node.digest, 0, out, 0, node.digest.length);
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Add the digest of a message
+     * @param fingerprint The message's xxHash64
+     * @param id The id of the algorithm
+     * @param message The message, between its position and limit. Neither is moved
+     * @param digest The digest
+     * @param length The length of the digest
+     */
+    void put(long fingerprint, byte id, ByteBuffer message, byte[] digest, int length) {
+        long key = fingerprint ^ id;
+        byte[] copy = new byte[message.remaining()];
+        message.duplicate().get(copy);
+        byte[] digestCopy = new byte[length];
+        System.arraycopy(digest, 0, digestCopy, 0, length);
+        int evicted = segment(key).insert(new Node(key, id, copy, digestCopy));
+        if (evicted > 0) {
+            evictions.add(evicted);
+        }
+    }
+
+    private Segment segment(long key) {
+        return segments[(int) ((key * 0x9E3779B97F4A7C15L) >>> 60) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @return Lookups answered from the cache since the server started
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Lookups that had to digest the message since the server started
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Entries evicted, or turned away on admission, since the server started
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The bytes the cache holds now
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.getWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * @return The number of entries the cache holds now
+     */
+    public int getEntries() {
+        int entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.getEntries();
+        }
+        return entries;
+    }
+
+    /**
+     * @return The most bytes the cache may hold
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * A cached digest, linked into the queue of the part of its segment it is in
+     */
+    private static final class Node {
+        final long key;
+        final byte id;
+        final byte[] message;
+        final byte[] digest;
+        final int weight;
+        int queue;
+        Node previous;
+        Node next;
+
+        Node(long key, byte id, byte[] message, byte[] digest) {
+            this.key = key;
+            this.id = id;
+            this.message = message;
+            this.digest = digest;
+            weight = message.length + digest.length + ENTRY_OVERHEAD;
+        }
+
+        // A list head
+        Node() {
+            this(0, (byte) 0, new byte[0], new byte[0]);
+            previous = this;
+            next = this;
+        }
+    }
+
+    /**
+     * One W-TinyLFU cache. Every method holds the segment's lock
+     */
+    private static final class Segment {
+        private static final int WINDOW = 0;
+        private static final int PROBATION = 1;
+        private static final int PROTECTED = 2;
+
+        private final HashMap<Long, Node> nodes;
+        private final FrequencySketch sketch;
+        // The least recently used entry of each queue is at the front
+        private final Node[] queues;
+        private final long[] weights;
+        private final long maxWindow;
+        private final long maxMain;
+        private final long maxProtected;
+
+        Segment(long capacity) {
+            nodes = new HashMap<>();
+            sketch = new FrequencySketch((int) Math.min(1 << 24, capacity / 1024));
+            queues = new Node[] { new Node(), new Node(), new Node() };
+            weights = new long[3];
+            maxWindow = Math.max(1, capacity / 100);
+            maxMain = capacity - maxWindow;
+            maxProtected = maxMain * 4 / 5;
+        }
+
+        /**
+         * Count a request for a key, and find its entry
+         * @return The entry, or null if there is none
+         */
+        synchronized Node lookup(long key) {
+            sketch.increment(key);
+            Node node = nodes.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (node.queue == PROBATION) {
+                move(node, PROTECTED);
+                while (weights[PROTECTED] > maxProtected) {
+                    move(queues[PROTECTED].next, PROBATION);
+                }
+            } else {
+                move(node, node.queue);
+            }
+            return node;
+        }
+
+        /**
+         * Add an entry to the window, and evict whatever no longer fits
+         * @return The number of entries evicted
+         */
+        synchronized int insert(Node node) {
+            if (node.weight > maxWindow + maxMain) {
+                return 1;
+            }
+            if (nodes.putIfAbsent(node.key, node) != null) {
+                return 0;
+            }
+            append(node, WINDOW);
+            while (weights[WINDOW] > maxWindow) {
+                move(queues[WINDOW].next, PROBATION);
+            }
+            int evicted = 0;
+            while (weights[PROBATION] + weights[PROTECTED] > maxMain) {
+                Node victim = queues[PROBATION].next;
+                if (victim == queues[PROBATION]) {
+                    victim = queues[PROTECTED].next;
+                }
+                // The newest entry on probation came out of the window last, and has to beat the victim to stay
+                Node candidate = queues[PROBATION].previous;
+                if (candidate != victim && candidate != queues[PROBATION]
+                        && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                    victim = candidate;
+                }
+                unlink(victim);
+                nodes.remove(victim.key);
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized long getWeight() {
+            return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+        }
+
+        synchronized int getEntries() {
+            return nodes.size();
+        }
+
+        private void move(Node node, int queue) {
+            unlink(node);
+            append(node, queue);
+        }
+
+        private void append(Node node, int queue) {
+            Node head = queues[queue];
+            node.queue = queue;
+            node.previous = head.previous;
+            node.next = head;
+            head.previous.next = node;
+            head.previous = node;
+            weights[queue] += node.weight;
+        }
+
+        private void unlink(Node node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            weights[node.queue] -= node.weight;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4 bit counters, 4 per key, estimating how often each key was asked for. Once there have
+     * been ten increments per counter of a row, every counter is halved
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+        private final byte[] counters;
+        private final int width;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int entries) {
+            width = Integer.highestOneBit(Math.max(16, entries) * 2 - 1);
+            counters = new byte[DEPTH * width];
+            sampleSize = 10 * width;
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(key, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(long key) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[index(key, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(long key, int row) {
+            long hash = (key + SEEDS[row]) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 32;
+            return row * width + ((int) hash & (width - 1));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package cs455.scaling.digest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>An incremental digest: the bytes of a message are added as they arrive, in any number of pieces, and the digest
+ * is taken once all of them have. The result is the same as HashAlgorithm.digest over the whole message.</p>
+ * <p>A stream hashes one message at a time and is not thread safe. finish readies it for the next message, so a
+ * connection can keep one stream for as long as it is open.</p>
+ */
+public interface DigestStream {
+
+    /**
+     * Add the bytes between the buffer's position and its limit. The buffer's position is moved to its limit
+     * @param data The next bytes of the message
+     */
+    void update(ByteBuffer data);
+
+    /**
+     * Write the digest of every byte added since the last finish, and start over
+     * @param out The array the digest is written to, starting at index 0. Must hold at least getLength() bytes of
+     *            the algorithm the stream came from
+     */
+    void finish(byte[] out);
+}
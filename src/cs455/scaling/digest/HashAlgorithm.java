@@ -0,0 +1,40 @@
+package cs455.scaling.digest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A hash function the server can answer messages with. A client picks one when it connects by sending the
+ * algorithm's id as the first byte on the connection, and every response on that connection is the hex form of a
+ * getLength() byte digest.</p>
+ * <p>Implementations must be thread safe and should not allocate per call, since they run on the pool's worker
+ * threads for every message.</p>
+ */
+public interface HashAlgorithm {
+
+    /**
+     * @return The byte a client sends to choose this algorithm
+     */
+    byte getId();
+
+    /**
+     * @return The name used on the command line and in reports
+     */
+    String getName();
+
+    /**
+     * @return The length of a digest in bytes. Responses are twice as long in hex
+     */
+    int getLength();
+
+    /**
+     * Hash the bytes between the buffer's position and its limit. The buffer's position is moved to its limit
+     * @param data The bytes to hash
+     * @param out The array the digest is written to, starting at index 0. Must hold at least getLength() bytes
+     */
+    void digest(ByteBuffer data, byte[] out);
+
+    /**
+     * @return A new incremental digest for hashing a message that arrives in pieces
+     */
+    DigestStream newStream();
+}
@@ -0,0 +1,73 @@
+package cs455.scaling.digest;
+
+/**
+ * The HashAlgorithms the server supports, looked up by the id a client sends or by name.
+ */
+public final class HashAlgorithms {
+
+    public static final byte SHA1_ID = 1;
+    public static final byte SHA256_ID = 2;
+    public static final byte CRC32C_ID = 3;
+    public static final byte XXHASH64_ID = 4;
+
+    public static final HashAlgorithm SHA1 = new MessageDigestAlgorithm(SHA1_ID, "sha1", "SHA-1");
+    public static final HashAlgorithm SHA256 = new MessageDigestAlgorithm(SHA256_ID, "sha256", "SHA-256");
+    public static final HashAlgorithm CRC32C = new Crc32cAlgorithm();
+    public static final HashAlgorithm XXHASH64 = new XxHash64Algorithm();
+
+    // Indexed by id
+    private static final HashAlgorithm[] ALGORITHMS = { null, SHA1, SHA256, CRC32C, XXHASH64 };
+
+    // The longest digest of any algorithm, in bytes
+    public static final int MAX_LENGTH = 32;
+
+    // Set in the handshake byte, on top of the algorithm id, by clients that send length-prefixed frames
+    public static final byte FRAMED = (byte) 0x80;
+
+    private HashAlgorithms() {
+    }
+
+    /**
+     * @param id The byte a client sent
+     * @return The algorithm with that id, or null if there is none
+     */
+    public static HashAlgorithm forId(byte id) {
+        return id > 0 && id < ALGORITHMS.length ? ALGORITHMS[id] : null;
+    }
+
+    /**
+     * @param name The name of an algorithm, such as sha1
+     * @return The algorithm with that name, or null if there is none
+     */
+    public static HashAlgorithm forName(String name) {
+        for (HashAlgorithm algorithm : ALGORITHMS) {
+            if (algorithm != null && algorithm.getName().equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The largest id of any algorithm, for sizing arrays indexed by id
+     */
+    public static int maxId() {
+        return ALGORITHMS.length - 1;
+    }
+
+    /**
+     * @return The names of every algorithm, separated by |
+     */
+    public static String names() {
+        StringBuilder names = new StringBuilder();
+        for (HashAlgorithm algorithm : ALGORITHMS) {
+            if (algorithm != null) {
+                if (names.length() > 0) {
+                    names.append('|');
+                }
+                names.append(algorithm.getName());
+            }
+        }
+        return names.toString();
+    }
+}
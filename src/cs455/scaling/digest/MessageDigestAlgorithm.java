@@ -0,0 +1,98 @@
+package cs455.scaling.digest;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A HashAlgorithm backed by a java.security.MessageDigest, such as SHA-1 or SHA-256. Each thread gets its own
+ * MessageDigest instance, which is reused for every message that thread hashes.
+ */
+public class MessageDigestAlgorithm implements HashAlgorithm {
+
+    private final byte id;
+    private final String name;
+    private final int length;
+    private final String javaName;
+    private final ThreadLocal<MessageDigest> digests;
+
+    /**
+     * @param id The byte a client sends to choose the algorithm
+     * @param name The name used on the command line and in reports
+     * @param javaName The name of the algorithm for MessageDigest.getInstance
+     * @throws IllegalArgumentException If the JVM does not provide the algorithm
+     */
+    MessageDigestAlgorithm(byte id, String name, String javaName) {
+        this.id = id;
+        this.name = name;
+        this.javaName = javaName;
+        try {
+            length = MessageDigest.getInstance(javaName).getDigestLength();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("MessageDigestAlgorithm: " + javaName + " does not exist", e);
+        }
+        digests = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(javaName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Override
+    public byte getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void digest(ByteBuffer data, byte[] out) {
+        MessageDigest md = digests.get();
+        md.update(data);
+        finish(md, out);
+    }
+
+    @Override
+    public DigestStream newStream() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(javaName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return new DigestStream() {
+            @Override
+            public void update(ByteBuffer data) {
+                md.update(data);
+            }
+
+            @Override
+            public void finish(byte[] out) {
+                MessageDigestAlgorithm.this.finish(md, out);
+            }
+        };
+    }
+
+    /**
+     * Write the digest of everything added to a MessageDigest, which resets it
+     */
+    private void finish(MessageDigest md, byte[] out) {
+        try {
+            md.digest(out, 0, length);
+        } catch (DigestException e) {
+            md.reset();
+            throw new IllegalArgumentException("MessageDigestAlgorithm: output array is too small for " + name);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package cs455.scaling.digest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * xxHash64 with a seed of 0, a fast non-cryptographic 64 bit hash. The 8 byte digest is the hash in big endian order,
+ * which matches the canonical hex form printed by the reference implementation.
+ */
+public class XxHash64Algorithm implements HashAlgorithm {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    @Override
+    public byte getId() {
+        return HashAlgorithms.XXHASH64_ID;
+    }
+
+    @Override
+    public String getName() {
+        return "xxhash64";
+    }
+
+    @Override
+    public int getLength() {
+        return 8;
+    }
+
+    @Override
+    public void digest(ByteBuffer data, byte[] out) {
+        write(hash(data), out);
+    }
+
+    @Override
+    public DigestStream newStream() {
+        return new Stream();
+    }
+
+    /**
+     * Write a hash in big endian order
+     */
+    private static void write(long hash, byte[] out) {
+        for (int i = 7; i >= 0; i--) {
+            out[i] = (byte) hash;
+            hash >>>= 8;
+        }
+    }
+
+    /**
+     * Compute the xxHash64 of the bytes between the buffer's position and its limit, moving the position to the limit
+     * @param data The bytes to hash
+     * @return The hash
+     */
+    public static long hash(ByteBuffer data) {
+        boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+        int position = data.position();
+        int limit = data.limit();
+        int length = limit - position;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = PRIME1 + PRIME2;
+            long v2 = PRIME2;
+            long v3 = 0;
+            long v4 = -PRIME1;
+            int end = limit - 32;
+            while (position <= end) {
+                v1 = round(v1, readLong(data, position, bigEndian));
+                v2 = round(v2, readLong(data, position + 8, bigEndian));
+                v3 = round(v3, readLong(data, position + 16, bigEndian));
+                v4 = round(v4, readLong(data, position + 24, bigEndian));
+                position += 32;
+            }
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+
+        hash += length;
+        while (position + 8 <= limit) {
+            hash ^= round(0, readLong(data, position, bigEndian));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            position += 8;
+        }
+        if (position + 4 <= limit) {
+            int lane = data.getInt(position);
+            if (bigEndian) {
+                lane = Integer.reverseBytes(lane);
+            }
+            hash ^= (lane & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        while (position < limit) {
+            hash ^= (data.get(position) & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+            position++;
+        }
+        data.position(limit);
+        return avalanche(hash);
+    }
+
+    private static long avalanche(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long readLong(ByteBuffer data, int index, boolean bigEndian) {
+        long lane = data.getLong(index);
+        return bigEndian ? Long.reverseBytes(lane) : lane;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME1 + PRIME4;
+    }
+
+    /**
+     * xxHash64 over bytes that arrive in pieces. Whole 32 byte stripes are hashed straight from the caller's buffer;
+     * the bytes of a stripe split across pieces are kept until the rest of it arrives
+     */
+    private static final class Stream implements DigestStream {
+        private final ByteBuffer partial;
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+        private long total;
+
+        Stream() {
+            partial = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+            reset();
+        }
+
+        private void reset() {
+            v1 = PRIME1 + PRIME2;
+            v2 = PRIME2;
+            v3 = 0;
+            v4 = -PRIME1;
+            total = 0;
+            partial.clear();
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+            int position = data.position();
+            int limit = data.limit();
+            total += limit - position;
+            if (partial.position() > 0) {
+                while (partial.hasRemaining() && position < limit) {
+                    partial.put(data.get(position++));
+                }
+                if (partial.hasRemaining()) {
+                    data.position(limit);
+                    return;
+                }
+                stripe(partial, 0, false);
+                partial.clear();
+            }
+            while (position + 32 <= limit) {
+                stripe(data, position, bigEndian);
+                position += 32;
+            }
+            while (position < limit) {
+                partial.put(data.get(position++));
+            }
+            data.position(limit);
+        }
+
+        private void stripe(ByteBuffer data, int position, boolean bigEndian) {
+            v1 = round(v1, readLong(data, position, bigEndian));
+            v2 = round(v2, readLong(data, position + 8, bigEndian));
+            v3 = round(v3, readLong(data, position + 16, bigEndian));
+            v4 = round(v4, readLong(data, position + 24, bigEndian));
+        }
+
+        @Override
+        public void finish(byte[] out) {
+            long hash;
+            if (total >= 32) {
+                hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                        + Long.rotateLeft(v4, 18);
+                hash = mergeRound(hash, v1);
+                hash = mergeRound(hash, v2);
+                hash = mergeRound(hash, v3);
+                hash = mergeRound(hash, v4);
+            } else {
+                hash = PRIME5;
+            }
+            hash += total;
+            int end = partial.position();
+            int position = 0;
+            while (position + 8 <= end) {
+                hash ^= round(0, partial.getLong(position));
+                hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+                position += 8;
+            }
+            if (position + 4 <= end) {
+                hash ^= (partial.getInt(position) & 0xFFFFFFFFL) * PRIME1;
+                hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+                position += 4;
+            }
+            while (position < end) {
+                hash ^= (partial.get(position) & 0xFF) * PRIME5;
+                hash = Long.rotateLeft(hash, 11) * PRIME1;
+                position++;
+            }
+            write(avalanche(hash), out);
+            reset();
+        }
+    }
+}
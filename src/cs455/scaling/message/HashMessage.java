@@ -1,20 +1,60 @@
 package cs455.scaling.message;
 
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 // TODO: Move from SocketAddress to InetSocketAddress
 
 /**
- * Holds a SHA-1 hash of a Message and the address it needs to be sent to
+ * <p>Holds a hash of a Message, as raw digest bytes, the algorithm that produced it, and the address it needs to be
+ * sent to. The hash is only turned into hex characters when it is written, either straight into a ByteBuffer or as
+ * a String.</p>
+ * <p>A HashMessage can instead be marked busy when the server sheds the message under overload. It is then written
+ * as the busy code: BUSY_PREFIX padded with '-' to the length of a hash, which can never be mistaken for hex.</p>
  */
 public class HashMessage {
 
-    private final String hash;
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    // Starts every busy code in place of a hash
+    public static final String BUSY_PREFIX = "BUSY";
+    private static final byte[] BUSY_BYTES = BUSY_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    private final HashAlgorithm algorithm;
+    private final byte[] digest;
     private SocketAddress returnAddress;
+    // When the message that was hashed arrived, copied from Message.getReceivedNanos
+    private long receivedNanos;
+    // True if the message was shed instead of hashed
+    private boolean busy;
 
-    public HashMessage(String hash) {
-        this.hash = hash;
+    /**
+     * @param algorithm The algorithm that produced the hash
+     * @param digest The raw bytes of the hash
+     */
+    public HashMessage(HashAlgorithm algorithm, byte[] digest) {
+        this.algorithm = algorithm;
+        this.digest = digest;
+    }
+
+    /**
+     * Create an empty HashMessage whose digest is filled in later by Message.digestInto
+     * @param algorithm The algorithm the digest will be produced with
+     */
+    public HashMessage(HashAlgorithm algorithm) {
+        this(algorithm, new byte[algorithm.getLength()]);
+    }
+
+    /**
+     * Create an empty HashMessage for a SHA-1 digest
+     */
+    public HashMessage() {
+        this(HashAlgorithms.SHA1);
     }
-    public HashMessage() {hash = "";}
 
     /**
      * Set the address the message needs to go to. This can only be done once.
@@ -31,11 +71,91 @@ public class HashMessage {
     }
 
     /**
-     * Gets the SHA-1 hash
-     * @return
+     * @param receivedNanos The System.nanoTime() at which the message that was hashed arrived
+     */
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * @return The System.nanoTime() at which the message that was hashed arrived, or 0 if it was never set
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * @param busy True if the message was shed, so the busy code is written instead of the digest
+     */
+    public void setBusy(boolean busy) {
+        this.busy = busy;
+    }
+
+    /**
+     * @return True if the message was shed and the busy code is written instead of the digest
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+
+    /**
+     * @return The algorithm that produced the hash
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the raw bytes of the hash. The array is shared, not copied
+     * @return The digest bytes
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return The number of bytes the hash takes up in hex
+     */
+    public int getHexLength() {
+        return digest.length << 1;
+    }
+
+    /**
+     * Write the hash as lowercase hex characters into a buffer without allocating, or the busy code if the message
+     * was shed
+     * @param buffer The buffer to write to, which must have getHexLength() bytes remaining
+     */
+    public void writeHex(ByteBuffer buffer) {
+        if (busy) {
+            writeBusy(buffer, getHexLength());
+            return;
+        }
+        for (byte b : digest) {
+            buffer.put(HEX_DIGITS[(b >> 4) & 0xf]);
+            buffer.put(HEX_DIGITS[b & 0xf]);
+        }
+    }
+
+    /**
+     * Write the busy code, BUSY_PREFIX padded with '-'
+     * @param buffer The buffer to write to
+     * @param length The length of the code, at least the length of BUSY_PREFIX
+     */
+    public static void writeBusy(ByteBuffer buffer, int length) {
+        buffer.put(BUSY_BYTES);
+        for (int i = BUSY_BYTES.length; i < length; i++) {
+            buffer.put((byte) '-');
+        }
+    }
+
+    /**
+     * Gets the hash
+     * @return The hash as a String of lowercase hex characters
      */
     public String getHash() {
-        return hash;
+        byte[] hex = new byte[getHexLength()];
+        writeHex(ByteBuffer.wrap(hex));
+        return new String(hex, StandardCharsets.US_ASCII);
     }
 
     /**
@@ -55,6 +175,6 @@ public class HashMessage {
 
     @Override
     public String toString() {
-        return hash;
+        return getHash();
     }
 }
@@ -1,31 +1,46 @@
 package cs455.scaling.message;
 
-import java.math.BigInteger;
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.utils.PooledBuffer;
+
 import java.net.SocketAddress;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A random 8 KB message. Used for testing Client-Server scalability.
  */
 public class Message {
 
-    final private static Random random = new Random();
+    // The size of every message in bytes
+    final public static int SIZE = 8192;
 
     // The bytes of the message, which will be sent from a client to the server
     final private byte[] rawBytes;
 
+    // The bytes of the message when it was read into a pooled buffer (only used on Server)
+    final private PooledBuffer buffer;
+
     // Where the message came from (Only used on Server)
     final private SocketAddress source;
 
+    // The algorithm the message should be hashed with
+    final private HashAlgorithm algorithm;
+
+    // System.nanoTime() when the server finished reading the message (only used on Server)
+    private long receivedNanos;
+
     /**
-     * Client-side constructor. Creates a random 8 KB message
+     * Client-side constructor. Creates a random 8 KB message. Each thread draws from its own generator, so clients
+     * on many threads do not contend on a shared one
      */
     public Message() {
-        rawBytes = new byte[8192];
-        random.nextBytes(rawBytes);
+        rawBytes = new byte[SIZE];
+        ThreadLocalRandom.current().nextBytes(rawBytes);
+        buffer = null;
         source = null;
+        algorithm = HashAlgorithms.SHA1;
     }
 
     /**
@@ -34,8 +49,34 @@ public class Message {
      * @param sourceAddress The SocketAddress of the client that sent the original message
      */
     public Message(byte[] rawBytes, SocketAddress sourceAddress) {
+        this(rawBytes, sourceAddress, HashAlgorithms.SHA1);
+    }
+
+    /**
+     * Server-side constructor. Reconstructs the message a client sent, with information about the client
+     * @param rawBytes An 8KB byte array
+     * @param sourceAddress The SocketAddress of the client that sent the original message
+     * @param algorithm The algorithm the client chose for its connection
+     */
+    public Message(byte[] rawBytes, SocketAddress sourceAddress, HashAlgorithm algorithm) {
         this.rawBytes = rawBytes;
+        buffer = null;
+        source = sourceAddress;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Server-side constructor. Wraps a pooled buffer holding the message a client sent without copying it.
+     * The Message takes over the caller's reference to the buffer, which is given back by release()
+     * @param buffer A PooledBuffer holding a full 8 KB message between position 0 and its limit
+     * @param sourceAddress The SocketAddress of the client that sent the original message
+     * @param algorithm The algorithm the client chose for its connection
+     */
+    public Message(PooledBuffer buffer, SocketAddress sourceAddress, HashAlgorithm algorithm) {
+        this.rawBytes = null;
+        this.buffer = buffer;
         source = sourceAddress;
+        this.algorithm = algorithm;
     }
 
     /**
@@ -46,9 +87,23 @@ public class Message {
         return source;
     }
 
+    /**
+     * @param receivedNanos The System.nanoTime() at which the last byte of the message was read
+     */
+    public void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * @return The System.nanoTime() at which the last byte of the message was read, or 0 if it was never set
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
     /**
      * Get the message as a byte array
-     * @return The byte array representing the message
+     * @return The byte array representing the message, or null if the message is backed by a pooled buffer
      */
     public byte[] getRawBytes() {
         return rawBytes;
@@ -56,20 +111,79 @@ public class Message {
 
 
     /**
-     * Return a SHA-1 hash of the bytes of a Message
-     * @return the hash wrapped in a HashMessage object
-     * Referenced http://www.javased.com/index.php?api=java.security.MessageDigest for a method of creating a hash String
-     * that does not drop 0 bits
+     * @return The algorithm the message should be hashed with
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Return a hash of the bytes of a Message, using the message's algorithm (SHA-1 unless chosen by a client)
+     * @return the hash wrapped in a new HashMessage object
      */
     public HashMessage getHash() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(rawBytes,0, rawBytes.length);
-            byte[] bytes = md.digest();
-            return new HashMessage(String.format("%0" + (bytes.length << 1) + "x", new BigInteger(1, bytes)));
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("Message.class: Algorithm does not exist");
-            return null;
+        return getHash(algorithm);
+    }
+
+    /**
+     * Return a hash of the bytes of a Message
+     * @param algorithm The algorithm to hash with
+     * @return the hash wrapped in a new HashMessage object
+     */
+    public HashMessage getHash(HashAlgorithm algorithm) {
+        HashMessage hash = new HashMessage(algorithm);
+        digestInto(hash);
+        return hash;
+    }
+
+    /**
+     * Write the hash of the bytes of a Message into an existing HashMessage, using the HashMessage's algorithm.
+     * The algorithms reuse per-thread state and do not allocate, so worker threads can hash without creating garbage
+     * @param hash A HashMessage created without a digest
+     */
+    public void digestInto(HashMessage hash) {
+        ByteBuffer bytes;
+        if (buffer != null) {
+            bytes = buffer.getBuffer();
+            bytes.position(0);
+        } else {
+            bytes = ByteBuffer.wrap(rawBytes);
+        }
+        hash.getAlgorithm().digest(bytes, hash.getDigest());
+    }
+
+    /**
+     * Get the bytes of the message without moving the position of the buffer that holds them
+     * @return A view of the message's bytes, positioned at 0
+     */
+    public ByteBuffer getBytes() {
+        if (buffer != null) {
+            ByteBuffer bytes = buffer.getBuffer().duplicate();
+            bytes.position(0);
+            return bytes;
+        }
+        return ByteBuffer.wrap(rawBytes);
+    }
+
+    /**
+     * Add a holder to the message's pooled buffer, so it outlives the release by whoever hashes the message. Every
+     * retain must be matched by one more release. Does nothing for messages backed by a byte array
+     * @return this, for chaining
+     */
+    public Message retain() {
+        if (buffer != null) {
+            buffer.retain();
+        }
+        return this;
+    }
+
+    /**
+     * Give the message's pooled buffer back to its pool. Does nothing for messages backed by a byte array.
+     * The message can not be hashed after it is released
+     */
+    public void release() {
+        if (buffer != null) {
+            buffer.release();
         }
     }
 
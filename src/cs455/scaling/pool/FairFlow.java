@@ -0,0 +1,65 @@
+package cs455.scaling.pool;
+
+import cs455.scaling.work.Work;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>A stream of Work a FAIR ThreadPool schedules as one, normally the Work of a single client connection. Work of
+ * the same flow runs in the order it was registered, and the pool shares its threads between flows instead of between
+ * individual Work objects.</p>
+ * <p>Flows are ordered into TIERS priority tiers, 0 first: Work of a lower tier always runs before queued Work of a
+ * higher one. Within a tier, flows take turns by deficit round-robin, each receiving its weight in messages per turn,
+ * so a flow of weight 2 gets twice the share of a flow of weight 1 while both have Work queued.</p>
+ */
+public class FairFlow {
+
+    // The number of priority tiers, and the tier of a flow that was not given one
+    public static final int TIERS = 3;
+    public static final int DEFAULT_TIER = 1;
+
+    final int tier;
+    final int weight;
+
+    // Scheduling state, only touched by the pool holding its lock
+    final ArrayDeque<Entry> queue;
+    long deficit;
+    boolean active;
+
+    /**
+     * @param tier The flow's priority tier, from 0 (first) to TIERS - 1. Clamped to that range
+     * @param weight The flow's share within its tier, relative to the other flows. At least 1
+     */
+    public FairFlow(int tier, int weight) {
+        this.tier = Math.max(0, Math.min(TIERS - 1, tier));
+        this.weight = Math.max(1, weight);
+        queue = new ArrayDeque<>();
+    }
+
+    /**
+     * @return The flow's priority tier
+     */
+    public int getTier() {
+        return tier;
+    }
+
+    /**
+     * @return The flow's share within its tier
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Queued Work and when it was registered
+     */
+    static final class Entry {
+        final Work work;
+        final long registeredNanos;
+
+        Entry(Work work, long registeredNanos) {
+            this.work = work;
+            this.registeredNanos = registeredNanos;
+        }
+    }
+}
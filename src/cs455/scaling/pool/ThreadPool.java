@@ -1,30 +1,83 @@
 package cs455.scaling.pool;
 
-import cs455.scaling.utils.BlockingLinkedList;
+import cs455.scaling.utils.Histogram;
+import cs455.scaling.utils.LockFreeArrayQueue;
 import cs455.scaling.work.Work;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * <p>A basic implementation of a thread pool. Currently only schedules objects that extend the Work
  * superclass, but with minor modification it would work with any Runnable object. The thread pool implements
  * runnable, so the manager can run on a dedicated thread or as the master thread.</p>
  * <p>Child classes of Work are allowed to create additional Work objects that are scheduled for execution.</p>
+ * <p>The pool runs in one of three modes:</p>
+ * <ul>
+ *     <li>MANAGED: a ThreadPoolManager thread pairs idle WorkerThreads with Work from a central queue</li>
+ *     <li>WORK_STEALING: every worker has its own deque. Work registered by a worker stays on that worker's deque,
+ *     Work registered from other threads is spread round-robin, and idle workers steal from the others</li>
+ *     <li>FAIR: workers take Work from per-client FairFlows by deficit round-robin, a priority tier at a time, so a
+ *     client flooding the pool only delays its own Work</li>
+ * </ul>
+ * <p>A MANAGED pool can be made elastic with setElastic, adding threads up to a maximum while Work waits too long
+ * for one, and retiring threads that have been idle for a while.</p>
  */
 public class ThreadPool implements Runnable {
 
-    private final ThreadPoolManager manager;
+    /**
+     * How Work is handed to the pool's threads
+     */
+    public enum Mode {
+        MANAGED,
+        WORK_STEALING,
+        FAIR
+    }
+
+    private final Manager manager;
+    private final Mode mode;
 
     /**
-     * Initiate a thread pool
+     * Initiate a thread pool in MANAGED mode
      * @param poolSize the size of the thread pool
      * @param workObjects Objects that extend Work that should be executed when the thread pool starts.
      *                    Additional Work can be registered after the pool has started with the
      */
     public ThreadPool(int poolSize, Work... workObjects) {
-        manager = new ThreadPoolManager(poolSize, workObjects);
+        this(poolSize, Mode.MANAGED, workObjects);
+    }
+
+    /**
+     * Initiate a thread pool
+     * @param poolSize the size of the thread pool
+     * @param mode How Work is handed to the pool's threads
+     * @param workObjects Objects that extend Work that should be executed when the thread pool starts.
+     *                    Additional Work can be registered after the pool has started with the
+     */
+    public ThreadPool(int poolSize, Mode mode, Work... workObjects) {
+        this.mode = mode;
+        if (mode == Mode.WORK_STEALING) {
+            manager = new WorkStealingManager(poolSize, workObjects);
+        } else if (mode == Mode.FAIR) {
+            manager = new FairManager(poolSize, workObjects);
+        } else {
+            manager = new ThreadPoolManager(poolSize, workObjects);
+        }
     }
 
     /**
-     * Start the manager, which in turn starts all of the pool's threads.
+     * Start the manager, which in turn starts all of the pool's threads. In MANAGED mode this method does not return,
+     * in WORK_STEALING and FAIR modes it returns once the threads have been started.
      */
     public void run() {
         manager.run();
@@ -39,17 +92,162 @@ public class ThreadPool implements Runnable {
     }
 
     /**
-     * Manages the ThreadPool. Assigns threads jobs that extend the Work class.
+     * @return The number of registered Work objects that are waiting for a thread
      */
-    private static class ThreadPoolManager implements Runnable {
+    public int getQueuedWork() {
+        return manager.getQueuedWork();
+    }
+
+    /**
+     * @return The number of threads that run Work with threadsNeeded = 0, which excludes threads held by dedicated Work
+     */
+    public int getWorkerCount() {
+        return manager.getWorkerCount();
+    }
+
+    /**
+     * @return The number of worker threads currently running Work with threadsNeeded = 0. The rest of
+     * getWorkerCount() are idle
+     */
+    public int getBusyWorkerCount() {
+        return manager.getBusyWorkerCount();
+    }
+
+    /**
+     * @return How Work is handed to the pool's threads
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param tier A priority tier, from 0 to FairFlow.TIERS - 1
+     * @return The number of Work objects of that tier waiting for a thread, or 0 if the pool is not FAIR
+     */
+    public int getQueuedWork(int tier) {
+        return manager instanceof FairManager ? ((FairManager) manager).depths.get(tier) : 0;
+    }
+
+    /**
+     * @param tier A priority tier, from 0 to FairFlow.TIERS - 1
+     * @return The time Work of that tier waited for a thread since the pool started, in nanoseconds, or null if the
+     * pool is not FAIR
+     */
+    public Histogram getWaitTimes(int tier) {
+        return manager instanceof FairManager ? ((FairManager) manager).waits[tier] : null;
+    }
+
+    /**
+     * Let the pool grow past its size while Work waits too long for a thread, and shrink back once threads sit
+     * idle. Only a MANAGED pool can be elastic. Must be called before the pool is run
+     * @param maxSize The most threads the pool may have, counting threads held by dedicated Work
+     * @param delayTarget How long Work may wait for a thread before the pool grows, in nanoseconds
+     * @param idleTimeout How long a thread above the pool size may be idle before it retires, in nanoseconds
+     * @return False if the pool is not MANAGED
+     */
+    public boolean setElastic(int maxSize, long delayTarget, long idleTimeout) {
+        if (!(manager instanceof ThreadPoolManager)) {
+            return false;
+        }
+        ((ThreadPoolManager) manager).setElastic(maxSize, delayTarget, idleTimeout);
+        return true;
+    }
+
+    /**
+     * @return True if the pool grows and shrinks with its queue delay
+     */
+    public boolean isElastic() {
+        return manager instanceof ThreadPoolManager && ((ThreadPoolManager) manager).delayTarget > 0;
+    }
+
+    /**
+     * @return The number of threads an elastic pool has now, counting threads held by dedicated Work
+     */
+    public int getThreadCount() {
+        return isElastic() ? ((ThreadPoolManager) manager).getThreadCount() : 0;
+    }
+
+    /**
+     * @param grown True for the times the pool grew, false for the times it shrank
+     * @return The number of times an elastic pool has been resized since it started
+     */
+    public long getResizes(boolean grown) {
+        if (!isElastic()) {
+            return 0;
+        }
+        ThreadPoolManager elastic = (ThreadPoolManager) manager;
+        return grown ? elastic.grows.get() : elastic.shrinks.get();
+    }
+
+    /**
+     * @return The last time an elastic pool measured Work waiting for a thread, in nanoseconds
+     */
+    public long getQueueDelay() {
+        return isElastic() ? ((ThreadPoolManager) manager).queueDelay : 0;
+    }
+
+    /**
+     * The part of a pool manager the ThreadPool relies on
+     */
+    private interface Manager extends Runnable {
+
+        void registerWork(Work... workObjects);
+
+        int getQueuedWork();
+
+        int getWorkerCount();
+
+        int getBusyWorkerCount();
+    }
+
+    /**
+     * <p>Manages the ThreadPool. Assigns threads jobs that extend the Work class.
+     * Registering Work waits while WORK_QUEUE_CAPACITY jobs are already queued.</p>
+     * <p>An elastic manager starts poolSize threads and grows towards maxSize while Work waits longer than the delay
+     * target for a thread. A sizer thread measures the wait every quarter target by noting how much Work has been
+     * queued, and timing how long it takes the manager to assign up to that point. The pool grows by one thread once
+     * the wait has been above target for GROW_CHECKS measurements in a row, and no sooner than two targets after it
+     * last grew. A thread above poolSize retires once it has been idle for the idle timeout, but never within an
+     * idle timeout of the pool growing, so a pool that just grew does not shrink straight back. Dedicated Work may
+     * grow the pool to get its threads, and its threads never go idle, so they are never retired.</p>
+     */
+    private static class ThreadPoolManager implements Manager {
+
+        // The most Work that can wait for a thread before registerWork waits for room
+        private static final int WORK_QUEUE_CAPACITY = 1 << 16;
+        // Measurements in a row the queue delay must be above target before an elastic pool grows
+        private static final int GROW_CHECKS = 3;
 
         final private int poolSize;
 
-        // Equal to the poolSize minus the number of threads involved in infinite tasks
+        // Equal to the threads started and not retired minus the number of threads involved in infinite tasks
         private int registerableThreads;
+        // Threads started and not retired, counting those held by dedicated Work
+        private int threadCount;
+        private boolean started;
 
-        final private BlockingLinkedList<Work> work;
-        final private BlockingLinkedList<WorkerThread> threads;
+        // The most threads an elastic pool may have, poolSize if the pool is not elastic
+        private int maxSize;
+        // How long Work may wait for a thread before an elastic pool grows in nanoseconds, 0 if it is not elastic
+        private volatile long delayTarget;
+        // How long a thread above poolSize may be idle before it retires in nanoseconds, 0 if the pool is not elastic
+        private volatile long idleTimeout;
+        // When the pool last grew, by System.nanoTime
+        private volatile long lastGrow;
+        // The last queue delay the sizer measured in nanoseconds
+        private volatile long queueDelay;
+        final private AtomicLong grows = new AtomicLong();
+        final private AtomicLong shrinks = new AtomicLong();
+        // Work put on and taken off the work queue, for measuring how long it waits
+        final private AtomicLong queuedTotal = new AtomicLong();
+        final private AtomicLong assignedTotal = new AtomicLong();
+
+        final private LockFreeArrayQueue<Work> work;
+        private LockFreeArrayQueue<WorkerThread> threads;
+        // WorkerThreads running Work with threadsNeeded = 0
+        final private AtomicInteger busy = new AtomicInteger();
+        // True on the threads of this manager's WorkerThreads
+        final private ThreadLocal<Boolean> onWorkerThread = ThreadLocal.withInitial(() -> false);
 
         /**
          * Create a ThreadPoolManager. The run method initiates the pool's threads
@@ -60,59 +258,155 @@ public class ThreadPool implements Runnable {
         ThreadPoolManager(int poolSize, Work... workObjects) {
             this.poolSize = poolSize;
             registerableThreads = poolSize;
-            work = new BlockingLinkedList<>();
-            threads = new BlockingLinkedList<>();
+            threadCount = poolSize;
+            maxSize = poolSize;
+            work = new LockFreeArrayQueue<>(WORK_QUEUE_CAPACITY);
+            // Each WorkerThread is only ever queued once at a time
+            threads = new LockFreeArrayQueue<>(Math.max(1, poolSize));
             registerWork(workObjects);
         }
 
+        /**
+         * Let the pool grow and shrink between poolSize and maxSize threads. Must be called before run
+         */
+        synchronized void setElastic(int maxSize, long delayTarget, long idleTimeout) {
+            this.maxSize = maxSize;
+            this.delayTarget = delayTarget;
+            this.idleTimeout = idleTimeout;
+            lastGrow = System.nanoTime();
+            // A retired WorkerThread stays queued until the manager takes it, so there is room for each thread twice
+            threads = new LockFreeArrayQueue<>(2 * maxSize);
+        }
+
         /**
          * Attempt to Work objects to the work list the thread pool is operating on
          * Registration will fail if there are not enough threads to handle the request
          * Registration of Work with threadsNeeded = 0 will always succeed, but too registering too
          * many may strain the thread pool. Failed registration will print an error, but it
          * will not throw an exception, and the thread pool will continue doing its registered Work
+         * If the work queue is full, outside threads wait for room, while a WorkerThread runs the Work itself
+         * (waiting could leave every WorkerThread stuck in registerWork with nobody to empty the queue)
          *
          * @param workObjects The Work object(s) to be registered
          */
-        synchronized void registerWork(Work... workObjects) {
+        @Override
+        public void registerWork(Work... workObjects) {
             if (workObjects == null) {
                 return;
             }
             for (Work work : workObjects) {
-                int requestedThreads = work.getThreadsNeeded();
-                if (requestedThreads > registerableThreads) {
+                if (!reserveThreads(work)) {
                     System.err.println("There are not enough threads available for the requested task!");
                     return;
-                } else {
+                }
+                if (!this.work.offer(work)) {
+                    if (onWorkerThread.get()) {
+                        work.run();
+                        continue;
+                    }
                     this.work.add(work);
+                }
+                queuedTotal.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int getQueuedWork() {
+            return work.size();
+        }
+
+        @Override
+        public synchronized int getWorkerCount() {
+            return registerableThreads;
+        }
+
+        @Override
+        public int getBusyWorkerCount() {
+            return busy.get();
+        }
+
+        synchronized int getThreadCount() {
+            return threadCount;
+        }
+
+        /**
+         * Take the threads a Work object needs out of the registerable threads, growing an elastic pool if there are
+         * not enough
+         * @return False if there are not enough threads left
+         */
+        private synchronized boolean reserveThreads(Work work) {
+            int requestedThreads = work.getThreadsNeeded();
+            if (requestedThreads > registerableThreads && !grow(requestedThreads - registerableThreads)) {
+                return false;
+            }
+            registerableThreads = registerableThreads - requestedThreads;
+            return true;
+        }
 
-                    registerableThreads = registerableThreads - requestedThreads;
+        /**
+         * Add threads, starting them if the pool is running
+         * @return False if that would take the pool past maxSize
+         */
+        private synchronized boolean grow(int count) {
+            if (threadCount + count > maxSize) {
+                return false;
+            }
+            threadCount += count;
+            registerableThreads += count;
+            if (started) {
+                for (int i = 0; i < count; i++) {
+                    startThread();
                 }
             }
+            return true;
         }
 
         /**
-         * Start poolSize threads, adding them to the manager's thread list
+         * Called by an idle WorkerThread that has waited for the idle timeout. Retiring leaves the pool at least
+         * poolSize threads and one thread for Work with threadsNeeded = 0
+         * @return True if the thread should exit
          */
-        void startThreads() {
-            for (int i = 0; i < poolSize; i++) {
-                WorkerThread workerThread = new WorkerThread(this);
-                queueThread(workerThread);
-                new Thread(workerThread).start();
+        synchronized boolean retire() {
+            if (threadCount <= poolSize || registerableThreads <= 1
+                    || System.nanoTime() - lastGrow < idleTimeout) {
+                return false;
             }
+            threadCount--;
+            registerableThreads--;
+            shrinks.incrementAndGet();
+            System.out.println("ThreadPool: Shrank to " + threadCount + " threads after "
+                    + idleTimeout / 1_000_000_000L + " s idle");
+            return true;
+        }
+
+        /**
+         * Start threadCount threads, adding them to the manager's thread list
+         */
+        synchronized void startThreads() {
+            started = true;
+            for (int i = 0; i < threadCount; i++) {
+                startThread();
+            }
+        }
+
+        private void startThread() {
+            WorkerThread workerThread = new WorkerThread(this);
+            queueThread(workerThread);
+            new Thread(workerThread).start();
         }
 
         /**
          * Notify the WorkerThread at the front of the queue when there is work to be done,
-         * waiting for a thread or work to become available if necessary
+         * waiting for a thread or work to become available if necessary. Threads that retired while queued are
+         * passed over
          */
         void assignWork() {
             try {
                 WorkerThread workerThread = threads.take();
                 Work job = work.take();
-                workerThread.assign(job);
-                synchronized (workerThread) {
-                    workerThread.notify();
+                assignedTotal.incrementAndGet();
+                while (!workerThread.assign(job)) {
+                    workerThread = threads.take();
                 }
             } catch (InterruptedException e) {
                 System.err.println("ThreadPoolManager: interrupted");
@@ -129,15 +423,562 @@ public class ThreadPool implements Runnable {
             threads.add(workerThread);
         }
 
+        /**
+         * Measure how long Work waits for a thread, and grow the pool while it waits too long. Runs on the sizer
+         * thread of an elastic pool
+         */
+        private void size() {
+            long interval = Math.max(1_000_000L, delayTarget / 4);
+            int above = 0;
+            long probe = 0;
+            long probeStart = 0;
+            while (true) {
+                LockSupport.parkNanos(interval);
+                long now = System.nanoTime();
+                long delay;
+                if (probeStart == 0) {
+                    long queued = queuedTotal.get();
+                    if (queued > assignedTotal.get()) {
+                        // Time the Work queued last, measuring again next time
+                        probe = queued;
+                        probeStart = now;
+                        continue;
+                    }
+                    delay = 0;
+                } else {
+                    // Until the timed Work has been assigned, the delay is at least this long
+                    delay = now - probeStart;
+                    if (assignedTotal.get() >= probe) {
+                        probeStart = 0;
+                    }
+                }
+                queueDelay = delay;
+                above = delay > delayTarget ? above + 1 : 0;
+                if (above >= GROW_CHECKS && now - lastGrow >= 2 * delayTarget) {
+                    above = 0;
+                    synchronized (this) {
+                        if (grow(1)) {
+                            lastGrow = now;
+                            grows.incrementAndGet();
+                            System.out.println("ThreadPool: Grew to " + threadCount + " threads, queue delay "
+                                    + String.format("%.1f", delay / 1e6) + " ms");
+                        }
+                    }
+                }
+            }
+        }
+
         @Override
         public void run() {
             startThreads();
+            if (delayTarget > 0) {
+                Thread sizer = new Thread(this::size, "ThreadPool-sizer");
+                sizer.setDaemon(true);
+                sizer.start();
+            }
             while (true) {
                 assignWork();
             }
         }
     }
 
+    /**
+     * <p>Manages the ThreadPool without a central queue or manager thread. Each StealingWorker owns a deque: it takes
+     * its own Work from the tail, while idle workers steal from the head of the other deques. Work registered by a
+     * worker is pushed onto its own deque, and Work registered from any other thread is spread round-robin.</p>
+     * <p>Work that needs dedicated threads (threadsNeeded > 0) is given a Thread of its own. Those threads count
+     * against the pool size, so fewer StealingWorkers are started, and if dedicated Work is registered after the
+     * pool has started a StealingWorker retires to make room for it.</p>
+     */
+    private static class WorkStealingManager implements Manager {
+
+        final private int poolSize;
+
+        // Equal to the poolSize minus the number of threads involved in infinite tasks
+        private int registerableThreads;
+
+        // Work that needs dedicated threads, waiting for the pool to start
+        final private ArrayList<Work> dedicated;
+        // Published once every worker has been created
+        private volatile StealingWorker[] workers;
+        private boolean started;
+
+        // The worker running on the current thread, if any
+        final private ThreadLocal<StealingWorker> currentWorker;
+        // Workers that are about to park or are parked
+        final private ConcurrentLinkedQueue<StealingWorker> idle;
+        // Where the next Work registered from outside the pool goes
+        final private AtomicInteger nextWorker;
+        // StealingWorkers that should retire to give their thread to dedicated Work
+        final private AtomicInteger retirements;
+        // Work sitting in the deques
+        final private AtomicInteger queued;
+        // StealingWorkers running Work
+        final private AtomicInteger busy;
+
+        WorkStealingManager(int poolSize, Work... workObjects) {
+            this.poolSize = poolSize;
+            registerableThreads = poolSize;
+            dedicated = new ArrayList<>();
+            currentWorker = new ThreadLocal<>();
+            idle = new ConcurrentLinkedQueue<>();
+            nextWorker = new AtomicInteger();
+            retirements = new AtomicInteger();
+            queued = new AtomicInteger();
+            busy = new AtomicInteger();
+            registerWork(workObjects);
+        }
+
+        @Override
+        public void registerWork(Work... workObjects) {
+            if (workObjects == null) {
+                return;
+            }
+            for (Work work : workObjects) {
+                int requestedThreads = work.getThreadsNeeded();
+                if (requestedThreads > 0) {
+                    if (!registerDedicated(work)) {
+                        return;
+                    }
+                } else {
+                    submit(work);
+                }
+            }
+        }
+
+        @Override
+        public int getQueuedWork() {
+            return Math.max(0, queued.get());
+        }
+
+        @Override
+        public synchronized int getWorkerCount() {
+            return registerableThreads;
+        }
+
+        @Override
+        public int getBusyWorkerCount() {
+            return busy.get();
+        }
+
+        /**
+         * Reserve threads for Work that needs them, starting its thread if the pool is already running
+         * @return False if there are not enough threads left
+         */
+        private synchronized boolean registerDedicated(Work work) {
+            int requestedThreads = work.getThreadsNeeded();
+            if (requestedThreads > registerableThreads) {
+                System.err.println("There are not enough threads available for the requested task!");
+                return false;
+            }
+            registerableThreads -= requestedThreads;
+            if (started) {
+                retirements.addAndGet(requestedThreads);
+                wakeAll();
+                new Thread(work).start();
+            } else {
+                dedicated.add(work);
+            }
+            return true;
+        }
+
+        /**
+         * Push Work onto the current worker's deque, or onto the next worker's deque if the caller is not a worker
+         */
+        private void submit(Work work) {
+            StealingWorker worker = currentWorker.get();
+            StealingWorker[] workers = this.workers;
+            if (worker == null || worker.retired) {
+                if (workers == null) {
+                    synchronized (this) {
+                        if (!started) {
+                            dedicated.add(work);
+                            return;
+                        }
+                        workers = this.workers;
+                    }
+                }
+                worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+                for (int i = 0; worker.retired && i < workers.length; i++) {
+                    worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+                }
+            }
+            queued.incrementAndGet();
+            worker.deque.addLast(work);
+            wakeOne();
+        }
+
+        /**
+         * Unpark one idle worker, if there is one
+         */
+        private void wakeOne() {
+            StealingWorker worker;
+            while ((worker = idle.poll()) != null) {
+                if (worker.parked.compareAndSet(true, false)) {
+                    LockSupport.unpark(worker.thread);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Unpark every idle worker
+         */
+        private void wakeAll() {
+            StealingWorker worker;
+            while ((worker = idle.poll()) != null) {
+                if (worker.parked.compareAndSet(true, false)) {
+                    LockSupport.unpark(worker.thread);
+                }
+            }
+        }
+
+        /**
+         * Find Work for a worker: its own newest Work first, then the oldest Work of another worker
+         * @return The Work to run, or null if every deque is empty
+         */
+        private Work findWork(StealingWorker worker) {
+            Work job = worker.deque.pollLast();
+            if (job != null) {
+                queued.decrementAndGet();
+                return job;
+            }
+            StealingWorker[] workers = this.workers;
+            int start = ThreadLocalRandom.current().nextInt(workers.length);
+            for (int i = 0; i < workers.length; i++) {
+                StealingWorker victim = workers[(start + i) % workers.length];
+                if (victim != worker) {
+                    job = victim.deque.pollFirst();
+                    if (job != null) {
+                        queued.decrementAndGet();
+                        return job;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Start the dedicated Work and poolSize minus the reserved threads StealingWorkers
+         */
+        @Override
+        public void run() {
+            ArrayList<Work> waiting;
+            synchronized (this) {
+                int workerCount = Math.max(1, registerableThreads);
+                StealingWorker[] created = new StealingWorker[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    created[i] = new StealingWorker(this);
+                }
+                workers = created;
+                started = true;
+                waiting = new ArrayList<>(dedicated);
+                dedicated.clear();
+            }
+            for (StealingWorker worker : this.workers) {
+                worker.thread.start();
+            }
+            for (Work work : waiting) {
+                if (work.getThreadsNeeded() > 0) {
+                    new Thread(work).start();
+                } else {
+                    submit(work);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Manages the ThreadPool with a scheduler that is fair between FairFlows. Every flow with queued Work is on the
+     * round-robin ring of its tier, and a worker looking for Work serves the lowest tier that has any. On its turn, a
+     * flow adds QUANTUM times its weight to its deficit and runs Work while the deficit covers the Work's cost, then
+     * goes to the back of the ring; a flow whose queue empties loses its deficit. Work without a flow goes to one
+     * shared flow in the default tier.</p>
+     * <p>The rings and queues are guarded by a single lock, held only to add or take one Work. Registering never waits,
+     * since the per-connection limits in SelectorWork already bound how much a client can queue. Dedicated Work is
+     * handled as in WorkStealingManager: it is given its own Thread, and a worker retires to make room if the pool has
+     * started.</p>
+     */
+    private static class FairManager implements Manager {
+
+        // Messages a flow of weight 1 may run per turn. Small, so a light client waits behind only a few messages of
+        // each heavy client; Work costing more takes several turns to save up for
+        private static final int QUANTUM = 4;
+
+        final private int poolSize;
+
+        // Equal to the poolSize minus the number of threads involved in infinite tasks
+        private int registerableThreads;
+
+        final private ReentrantLock lock;
+        final private Condition available;
+        // Flows with queued Work, per tier, in the order of their turns
+        final private ArrayDeque<FairFlow>[] rings;
+        final private FairFlow shared;
+        // Workers that should retire to give their thread to dedicated Work
+        private int retirements;
+        // Work that needs dedicated threads, waiting for the pool to start
+        final private ArrayList<Work> dedicated;
+        private boolean started;
+
+        // Queued Work per tier, and in total
+        final private AtomicIntegerArray depths;
+        final private AtomicInteger queued;
+        // The time from registering Work to a worker starting it, per tier
+        final private Histogram[] waits;
+        final private AtomicInteger busy;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        FairManager(int poolSize, Work... workObjects) {
+            this.poolSize = poolSize;
+            registerableThreads = poolSize;
+            lock = new ReentrantLock();
+            available = lock.newCondition();
+            rings = new ArrayDeque[FairFlow.TIERS];
+            waits = new Histogram[FairFlow.TIERS];
+            for (int tier = 0; tier < FairFlow.TIERS; tier++) {
+                rings[tier] = new ArrayDeque<>();
+                waits[tier] = new Histogram();
+            }
+            shared = new FairFlow(FairFlow.DEFAULT_TIER, 1);
+            dedicated = new ArrayList<>();
+            depths = new AtomicIntegerArray(FairFlow.TIERS);
+            queued = new AtomicInteger();
+            busy = new AtomicInteger();
+            registerWork(workObjects);
+        }
+
+        @Override
+        public void registerWork(Work... workObjects) {
+            if (workObjects == null) {
+                return;
+            }
+            for (Work work : workObjects) {
+                if (work.getThreadsNeeded() > 0) {
+                    if (!registerDedicated(work)) {
+                        return;
+                    }
+                } else {
+                    enqueue(work);
+                }
+            }
+        }
+
+        @Override
+        public int getQueuedWork() {
+            return queued.get();
+        }
+
+        @Override
+        public synchronized int getWorkerCount() {
+            return registerableThreads;
+        }
+
+        @Override
+        public int getBusyWorkerCount() {
+            return busy.get();
+        }
+
+        /**
+         * Reserve threads for Work that needs them, starting its thread if the pool is already running
+         * @return False if there are not enough threads left
+         */
+        private synchronized boolean registerDedicated(Work work) {
+            int requestedThreads = work.getThreadsNeeded();
+            if (requestedThreads > registerableThreads) {
+                System.err.println("There are not enough threads available for the requested task!");
+                return false;
+            }
+            registerableThreads -= requestedThreads;
+            if (started) {
+                lock.lock();
+                try {
+                    retirements += requestedThreads;
+                    available.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                new Thread(work).start();
+            } else {
+                dedicated.add(work);
+            }
+            return true;
+        }
+
+        /**
+         * Add Work to the back of its flow's queue, putting the flow on its tier's ring if it was not there
+         */
+        private void enqueue(Work work) {
+            FairFlow flow = work.getFlow() == null ? shared : work.getFlow();
+            long now = System.nanoTime();
+            lock.lock();
+            try {
+                flow.queue.addLast(new FairFlow.Entry(work, now));
+                if (!flow.active) {
+                    flow.active = true;
+                    flow.deficit = 0;
+                    rings[flow.tier].addLast(flow);
+                }
+                depths.incrementAndGet(flow.tier);
+                queued.incrementAndGet();
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Take the next Work by deficit round-robin from the lowest tier that has any. Called holding the lock
+         * @return The Work and when it was registered, or null if nothing is queued
+         */
+        private FairFlow.Entry next() {
+            for (int tier = 0; tier < FairFlow.TIERS; tier++) {
+                ArrayDeque<FairFlow> ring = rings[tier];
+                while (!ring.isEmpty()) {
+                    FairFlow flow = ring.peekFirst();
+                    FairFlow.Entry entry = flow.queue.peekFirst();
+                    int cost = Math.max(1, entry.work.getCost());
+                    if (flow.deficit < cost) {
+                        // The flow's turn is over. It is given its next turn's quantum and waits for the others
+                        flow.deficit += (long) QUANTUM * flow.weight;
+                        ring.addLast(ring.pollFirst());
+                        continue;
+                    }
+                    flow.deficit -= cost;
+                    flow.queue.pollFirst();
+                    if (flow.queue.isEmpty()) {
+                        ring.pollFirst();
+                        flow.active = false;
+                        flow.deficit = 0;
+                    }
+                    depths.decrementAndGet(tier);
+                    queued.decrementAndGet();
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Run Work until retired, waiting whenever there is none
+         */
+        private void work() {
+            while (true) {
+                FairFlow.Entry entry;
+                lock.lock();
+                try {
+                    while ((entry = next()) == null) {
+                        if (retirements > 0) {
+                            retirements--;
+                            return;
+                        }
+                        available.awaitUninterruptibly();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                Work job = entry.work;
+                FairFlow flow = job.getFlow() == null ? shared : job.getFlow();
+                waits[flow.tier].record(System.nanoTime() - entry.registeredNanos);
+                busy.incrementAndGet();
+                try {
+                    job.run();
+                } finally {
+                    busy.decrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Start the dedicated Work and poolSize minus the reserved threads workers
+         */
+        @Override
+        public void run() {
+            ArrayList<Work> waiting;
+            int workerCount;
+            synchronized (this) {
+                workerCount = Math.max(1, registerableThreads);
+                started = true;
+                waiting = new ArrayList<>(dedicated);
+                dedicated.clear();
+            }
+            for (int i = 0; i < workerCount; i++) {
+                new Thread(this::work).start();
+            }
+            for (Work work : waiting) {
+                new Thread(work).start();
+            }
+        }
+    }
+
+    /**
+     * A thread owned by a WorkStealingManager, along with its deque of Work.
+     */
+    private static class StealingWorker implements Runnable {
+
+        final private WorkStealingManager manager;
+        final private ConcurrentLinkedDeque<Work> deque;
+        final private Thread thread;
+        // True while the worker is parked (or about to park) waiting for Work
+        final private AtomicBoolean parked;
+        private volatile boolean retired;
+
+        StealingWorker(WorkStealingManager manager) {
+            this.manager = manager;
+            deque = new ConcurrentLinkedDeque<>();
+            thread = new Thread(this);
+            parked = new AtomicBoolean();
+        }
+
+        /**
+         * Retire if dedicated Work is waiting for a thread. Only called once the worker's deque is empty
+         * @return True if this worker should exit
+         */
+        private boolean retire() {
+            AtomicInteger retirements = manager.retirements;
+            int waiting;
+            while ((waiting = retirements.get()) > 0) {
+                if (retirements.compareAndSet(waiting, waiting - 1)) {
+                    retired = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Run Work until retired, parking whenever there is none. The worker announces itself as idle before
+         * checking the deques one last time, so Work submitted while it is going to sleep always wakes it.
+         */
+        public void run() {
+            manager.currentWorker.set(this);
+            while (true) {
+                Work job = manager.findWork(this);
+                if (job == null) {
+                    if (retire()) {
+                        return;
+                    }
+                    parked.set(true);
+                    manager.idle.add(this);
+                    job = manager.findWork(this);
+                    if (job == null) {
+                        while (parked.get()) {
+                            LockSupport.park(this);
+                        }
+                        continue;
+                    }
+                    parked.set(false);
+                }
+                manager.busy.incrementAndGet();
+                try {
+                    job.run();
+                } finally {
+                    manager.busy.decrementAndGet();
+                }
+            }
+        }
+    }
+
     /**
      * A wrapper object for the threads used by a ThreadPoolManager. The WorkerThread objects
      * themselves are not thread safe, but the implementation of ThreadPoolManager handles
@@ -149,6 +990,8 @@ public class ThreadPool implements Runnable {
         final private ThreadPoolManager manager;
         // The current task to complete;
         private Work currentJob;
+        // Set once the thread has left an elastic pool
+        private boolean retired;
 
         /**
          * Create a WorkerThread (should only be called by the ThreadPoolManager
@@ -159,21 +1002,49 @@ public class ThreadPool implements Runnable {
         }
 
         /**
-         * Called by the ThreadPoolManager to give the thread work
+         * Called by the ThreadPoolManager to give the thread work and wake it up
          *
          * @param job The Work object to invoke the run method on
+         * @return False if the thread has retired, and the job has to go to another thread
          */
-        void assign(Work job) {
+        synchronized boolean assign(Work job) {
+            if (retired) {
+                return false;
+            }
             currentJob = job;
+            notify();
+            return true;
         }
 
         /**
-         * Wait until ThreadPoolManager sends a notification that this thread has been assigned work
+         * Wait until ThreadPoolManager has assigned this thread work. The job is checked under the lock, so work
+         * assigned before this thread starts waiting is not missed. In an elastic pool, a thread that waits for the
+         * idle timeout offers to retire
          *
+         * @return The assigned job, or null if the thread has retired
          * @throws InterruptedException
          */
-        synchronized void waitForWork() throws InterruptedException {
-            wait();
+        synchronized Work waitForWork() throws InterruptedException {
+            long idleTimeout = manager.idleTimeout;
+            long idleSince = System.nanoTime();
+            while (currentJob == null) {
+                if (idleTimeout == 0) {
+                    wait();
+                    continue;
+                }
+                long remaining = idleSince + idleTimeout - System.nanoTime();
+                if (remaining > 0) {
+                    wait(remaining / 1_000_000 + 1);
+                } else if (manager.retire()) {
+                    retired = true;
+                    return null;
+                } else {
+                    idleSince = System.nanoTime();
+                }
+            }
+            Work job = currentJob;
+            currentJob = null;
+            return job;
         }
 
         /**
@@ -184,13 +1055,28 @@ public class ThreadPool implements Runnable {
         }
 
         /**
-         * Wait on and do work until interrupted
+         * Wait on and do work until interrupted or retired
          */
         public void run() {
+            manager.onWorkerThread.set(true);
             while (true) {
                 try {
-                    waitForWork();
-                    currentJob.run();
+                    Work job = waitForWork();
+                    if (job == null) {
+                        return;
+                    }
+                    // Dedicated Work never returns, so only pool Work counts as keeping a worker busy
+                    boolean counted = job.getThreadsNeeded() == 0;
+                    if (counted) {
+                        manager.busy.incrementAndGet();
+                    }
+                    try {
+                        job.run();
+                    } finally {
+                        if (counted) {
+                            manager.busy.decrementAndGet();
+                        }
+                    }
                     returnToPool();
                 } catch (InterruptedException e) {
                     System.err.println("WorkThread: Interrupted");
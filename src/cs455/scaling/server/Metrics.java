@@ -0,0 +1,234 @@
+package cs455.scaling.server;
+
+import cs455.scaling.digest.DigestCache;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.message.Message;
+import cs455.scaling.pool.FairFlow;
+import cs455.scaling.pool.ThreadPool;
+import cs455.scaling.utils.Histogram;
+import cs455.scaling.work.DispatchPolicy;
+import cs455.scaling.work.SelectorWork;
+import cs455.scaling.work.TrafficCapture;
+
+/**
+ * <p>Renders the state of a running Server as a plain text, Prometheus style metrics page.</p>
+ * <p>Everything on the page is read from counters the server keeps anyway, without taking a lock the message path
+ * uses, so the page can be rendered every second. Throughput is exposed as counters that only ever grow; the rate is
+ * left to whatever scrapes the page.</p>
+ */
+public class Metrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final ThreadPool threadPool;
+    private final SelectorWork[] selectorWorks;
+
+    /**
+     * @param threadPool The pool the server's Work runs in
+     * @param selectorWorks Every SelectorWork of the server
+     */
+    public Metrics(ThreadPool threadPool, SelectorWork... selectorWorks) {
+        this.threadPool = threadPool;
+        this.selectorWorks = selectorWorks;
+    }
+
+    /**
+     * @return The metrics page, in the Prometheus text exposition format
+     */
+    public String render() {
+        StringBuilder page = new StringBuilder(1024);
+        long answered = 0;
+        long pendingWriteBytes = 0;
+        int connections = 0;
+        long shed = 0;
+        long refused = 0;
+        long overloads = 0;
+        int overloaded = 0;
+        int paused = 0;
+        long closed = 0;
+        Histogram latencies = new Histogram();
+        for (SelectorWork selectorWork : selectorWorks) {
+            answered += selectorWork.getMessagesAnswered();
+            pendingWriteBytes += selectorWork.getPendingWriteBytes();
+            connections += selectorWork.getConnectionCount();
+            latencies.add(selectorWork.getLatencies());
+            shed += selectorWork.getShedMessages();
+            refused += selectorWork.getAdmissionControl().getRefused();
+            overloads += selectorWork.getAdmissionControl().getOverloads();
+            overloaded += selectorWork.getAdmissionControl().isOverloaded() ? 1 : 0;
+            paused += selectorWork.getPausedConnections();
+            closed += selectorWork.getClosedConnections();
+        }
+
+        header(page, "cs455_messages_total", "counter", "Messages answered since the server started.");
+        sample(page, "cs455_messages_total", answered);
+
+        header(page, "cs455_client_messages_total", "counter", "Messages answered per connected client.");
+        for (SelectorWork selectorWork : selectorWorks) {
+            for (ReportCounter counter : selectorWork.getCounters()) {
+                page.append("cs455_client_messages_total{client=\"").append(counter.getAddress()).append("\"} ")
+                        .append(counter.getTotal()).append('\n');
+            }
+        }
+
+        header(page, "cs455_connections", "gauge", "Open client connections.");
+        sample(page, "cs455_connections", connections);
+
+        header(page, "cs455_closed_connections_total", "counter", "Client connections closed.");
+        sample(page, "cs455_closed_connections_total", closed);
+
+        header(page, "cs455_work_queue_depth", "gauge", "Work waiting for a thread in the thread pool.");
+        sample(page, "cs455_work_queue_depth", threadPool.getQueuedWork());
+
+        int busy = threadPool.getBusyWorkerCount();
+        header(page, "cs455_workers", "gauge", "Thread pool workers by state.");
+        page.append("cs455_workers{state=\"busy\"} ").append(busy).append('\n');
+        page.append("cs455_workers{state=\"idle\"} ").append(Math.max(0, threadPool.getWorkerCount() - busy))
+                .append('\n');
+
+        if (threadPool.getMode() == ThreadPool.Mode.FAIR) {
+            renderTiers(page);
+        }
+        if (threadPool.isElastic()) {
+            header(page, "cs455_pool_threads", "gauge", "Threads in the elastic thread pool, dedicated ones included.");
+            sample(page, "cs455_pool_threads", threadPool.getThreadCount());
+
+            header(page, "cs455_pool_resizes_total", "counter", "Times the elastic thread pool grew or shrank.");
+            page.append("cs455_pool_resizes_total{direction=\"grow\"} ").append(threadPool.getResizes(true))
+                    .append('\n');
+            page.append("cs455_pool_resizes_total{direction=\"shrink\"} ").append(threadPool.getResizes(false))
+                    .append('\n');
+
+            header(page, "cs455_pool_queue_delay_seconds", "gauge", "Last measured time work waited for a thread.");
+            page.append("cs455_pool_queue_delay_seconds ").append(threadPool.getQueueDelay() / NANOS_PER_SECOND)
+                    .append('\n');
+        }
+
+        header(page, "cs455_pending_write_bytes", "gauge", "Bytes of hashes ready but not yet written to a socket.");
+        sample(page, "cs455_pending_write_bytes", pendingWriteBytes);
+
+        header(page, "cs455_overloaded_selectors", "gauge", "Selectors above their high watermark.");
+        sample(page, "cs455_overloaded_selectors", overloaded);
+
+        header(page, "cs455_overloads_total", "counter", "Times a selector reached its high watermark.");
+        sample(page, "cs455_overloads_total", overloads);
+
+        header(page, "cs455_paused_connections", "gauge", "Connections not read from because of overload.");
+        sample(page, "cs455_paused_connections", paused);
+
+        header(page, "cs455_refused_connections_total", "counter", "Connections refused because of overload.");
+        sample(page, "cs455_refused_connections_total", refused);
+
+        header(page, "cs455_shed_messages_total", "counter", "Messages answered with the busy code.");
+        sample(page, "cs455_shed_messages_total", shed);
+
+        header(page, "cs455_latency_seconds", "summary", "Time from reading a message to writing its hash.");
+        for (double quantile : QUANTILES) {
+            page.append("cs455_latency_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(latencies.getValueAtPercentile(quantile * 100) / NANOS_PER_SECOND).append('\n');
+        }
+        page.append("cs455_latency_seconds_sum ").append(latencies.getSum() / NANOS_PER_SECOND).append('\n');
+        page.append("cs455_latency_seconds_count ").append(latencies.getCount()).append('\n');
+
+        if (selectorWorks.length > 0 && selectorWorks[0].getDispatchPolicy() != null) {
+            renderDispatch(page);
+        }
+
+        TrafficCapture capture = selectorWorks.length > 0 ? selectorWorks[0].getCapture() : null;
+        if (capture != null) {
+            header(page, "cs455_captured_messages_total", "counter", "Messages appended to the capture file.");
+            sample(page, "cs455_captured_messages_total", capture.getCaptured());
+
+            header(page, "cs455_capture_dropped_total", "counter", "Messages left out of the capture file.");
+            sample(page, "cs455_capture_dropped_total", capture.getDropped());
+        }
+
+        DigestCache cache = selectorWorks.length > 0 ? selectorWorks[0].getCache() : null;
+        if (cache != null) {
+            header(page, "cs455_cache_requests_total", "counter", "Digest cache lookups by result.");
+            page.append("cs455_cache_requests_total{result=\"hit\"} ").append(cache.getHits()).append('\n');
+            page.append("cs455_cache_requests_total{result=\"miss\"} ").append(cache.getMisses()).append('\n');
+
+            header(page, "cs455_cache_evictions_total", "counter", "Digest cache entries evicted or not admitted.");
+            sample(page, "cs455_cache_evictions_total", cache.getEvictions());
+
+            header(page, "cs455_cache_entries", "gauge", "Digests held by the digest cache.");
+            sample(page, "cs455_cache_entries", cache.getEntries());
+
+            header(page, "cs455_cache_bytes", "gauge", "Bytes held by the digest cache, out of its capacity.");
+            page.append("cs455_cache_bytes{kind=\"used\"} ").append(cache.getWeight()).append('\n');
+            page.append("cs455_cache_bytes{kind=\"capacity\"} ").append(cache.getCapacity()).append('\n');
+        }
+        return page.toString();
+    }
+
+    /**
+     * Add the queue depth and wait times of each priority tier of a fair thread pool
+     */
+    private void renderTiers(StringBuilder page) {
+        header(page, "cs455_tier_queue_depth", "gauge", "Work waiting for a thread, by priority tier.");
+        for (int tier = 0; tier < FairFlow.TIERS; tier++) {
+            page.append("cs455_tier_queue_depth{tier=\"").append(tier).append("\"} ")
+                    .append(threadPool.getQueuedWork(tier)).append('\n');
+        }
+
+        header(page, "cs455_tier_wait_seconds", "summary", "Time work waited for a thread, by priority tier.");
+        for (int tier = 0; tier < FairFlow.TIERS; tier++) {
+            Histogram waits = threadPool.getWaitTimes(tier);
+            for (double quantile : QUANTILES) {
+                page.append("cs455_tier_wait_seconds{tier=\"").append(tier).append("\",quantile=\"")
+                        .append(quantile).append("\"} ")
+                        .append(waits.getValueAtPercentile(quantile * 100) / NANOS_PER_SECOND).append('\n');
+            }
+            page.append("cs455_tier_wait_seconds_sum{tier=\"").append(tier).append("\"} ")
+                    .append(waits.getSum() / NANOS_PER_SECOND).append('\n');
+            page.append("cs455_tier_wait_seconds_count{tier=\"").append(tier).append("\"} ")
+                    .append(waits.getCount()).append('\n');
+        }
+    }
+
+    /**
+     * Add the decisions of every selector's DispatchPolicy, and the averages of their cost models
+     */
+    private void renderDispatch(StringBuilder page) {
+        long inline = 0;
+        long offloaded = 0;
+        double handoff = 0;
+        double[] hashNanos = new double[HashAlgorithms.maxId() + 1];
+        for (SelectorWork selectorWork : selectorWorks) {
+            DispatchPolicy dispatch = selectorWork.getDispatchPolicy();
+            inline += dispatch.getInline();
+            offloaded += dispatch.getOffloaded();
+            handoff += dispatch.getHandoffNanos() / selectorWorks.length;
+            for (int id = 1; id < hashNanos.length; id++) {
+                hashNanos[id] += dispatch.getHashNanos((byte) id, Message.SIZE) / selectorWorks.length;
+            }
+        }
+
+        header(page, "cs455_dispatch_total", "counter", "Messages hashed on a selector thread or in the thread pool.");
+        page.append("cs455_dispatch_total{path=\"inline\"} ").append(inline).append('\n');
+        page.append("cs455_dispatch_total{path=\"offload\"} ").append(offloaded).append('\n');
+
+        header(page, "cs455_dispatch_handoff_seconds", "gauge",
+                "Average time offloaded work waits for a worker, as used by the dispatch policy.");
+        page.append("cs455_dispatch_handoff_seconds ").append(handoff / NANOS_PER_SECOND).append('\n');
+
+        header(page, "cs455_dispatch_hash_seconds", "gauge",
+                "Predicted time to hash an 8 KB message, as used by the dispatch policy.");
+        for (int id = 1; id < hashNanos.length; id++) {
+            page.append("cs455_dispatch_hash_seconds{algorithm=\"")
+                    .append(HashAlgorithms.forId((byte) id).getName()).append("\"} ")
+                    .append(hashNanos[id] / NANOS_PER_SECOND).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder page, String name, String type, String help) {
+        page.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        page.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder page, String name, long value) {
+        page.append(name).append(' ').append(value).append('\n');
+    }
+}
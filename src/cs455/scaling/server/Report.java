@@ -1,6 +1,8 @@
 package cs455.scaling.server;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Generate a report of the server's active connections and throughput. This class assumes a Report object will be
@@ -12,6 +14,11 @@ public class Report {
     public final double totalMessagesPerSecond;
     public final double averageMessagesPerSecond;
     public final double messageStdDev;
+    // The mean number of messages per ScalingMessageWork, and the largest current batch limit of any selector
+    public final double averageBatchSize;
+    public final int batchLimit;
+    // Messages answered per second with each hash algorithm, by algorithm name
+    public final LinkedHashMap<String, Double> algorithmMessagesPerSecond;
 
     // TODO: Standard deviation
 
@@ -20,8 +27,26 @@ public class Report {
      * @param counters A list of ReportCounter objects to be included in the report
      */
     public Report(ArrayList<ReportCounter> counters) {
+        this(counters, 1, 1, new LinkedHashMap<>());
+    }
+
+    /**
+     * Creates a report including the batching done by the server's selectors.
+     * @param counters A list of ReportCounter objects to be included in the report
+     * @param averageBatchSize The mean number of messages per dispatched batch
+     * @param batchLimit The current batch limit
+     * @param algorithmCounts The number of messages answered with each hash algorithm, by algorithm name
+     */
+    public Report(ArrayList<ReportCounter> counters, double averageBatchSize, int batchLimit,
+                  Map<String, Long> algorithmCounts) {
+        this.averageBatchSize = averageBatchSize;
+        this.batchLimit = batchLimit;
+        algorithmMessagesPerSecond = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> count : algorithmCounts.entrySet()) {
+            algorithmMessagesPerSecond.put(count.getKey(), count.getValue() / 20.);
+        }
         this.machinesRegistered = counters.size();
-        int totalMessages = 0;
+        long totalMessages = 0;
         for (ReportCounter counter : counters) {
             totalMessages += counter.getCount();
         }
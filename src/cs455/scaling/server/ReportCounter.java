@@ -1,27 +1,67 @@
 package cs455.scaling.server;
 
 import java.net.SocketAddress;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Counts the messages processed for a single client. Counting is lock free and may happen on one thread while
+ * another takes a snapshot, so reporting never blocks the thread doing the counting.
+ */
 public class ReportCounter {
 
     private final SocketAddress address;
-    private Integer messagesProcessed;
+    private final LongAdder messagesProcessed;
+    // Never reset, so it counts every message since the counter was created
+    private final LongAdder totalProcessed;
 
     public ReportCounter(SocketAddress address) {
         this.address = address;
-        messagesProcessed = 0;
+        messagesProcessed = new LongAdder();
+        totalProcessed = new LongAdder();
     }
 
     public void increment() {
-        messagesProcessed++;
+        messagesProcessed.increment();
+        totalProcessed.increment();
     }
 
-    public int getCount() {
-        return messagesProcessed;
+    /**
+     * Count several processed messages at once
+     * @param messages The number of messages processed
+     */
+    public void add(int messages) {
+        messagesProcessed.add(messages);
+        totalProcessed.add(messages);
+    }
+
+    public long getCount() {
+        return messagesProcessed.sum();
+    }
+
+    /**
+     * @return The number of messages counted since the counter was created, unaffected by reset and snapshot
+     */
+    public long getTotal() {
+        return totalProcessed.sum();
     }
 
     public void reset() {
-        messagesProcessed = 0;
+        messagesProcessed.reset();
+    }
+
+    /**
+     * Copy the counter and reset it. Messages counted while the snapshot is taken land in either the copy or the
+     * next snapshot, never in both
+     * @return A counter for the same address holding the count before the reset
+     */
+    public ReportCounter snapshot() {
+        ReportCounter copy = new ReportCounter(address);
+        copy.messagesProcessed.add(messagesProcessed.sumThenReset());
+        return copy;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
     }
 
     @Override
@@ -29,4 +69,9 @@ public class ReportCounter {
         return (o instanceof ReportCounter && ((ReportCounter)o).address.equals(address));
     }
 
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+
 }
@@ -1,6 +1,11 @@
 package cs455.scaling.server;
 
+import cs455.scaling.digest.DigestCache;
+import cs455.scaling.work.Acceptor;
+import cs455.scaling.work.MetricsWork;
 import cs455.scaling.work.SelectorWork;
+import cs455.scaling.work.ThreadPerConnection;
+import cs455.scaling.work.TrafficCapture;
 import cs455.scaling.pool.ThreadPool;
 
 import java.io.IOException;
@@ -12,11 +17,12 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
 
 public class Server {
 
     final private int port;
-    final private int poolSize;
+    final private ServerConfig config;
     final private ServerSocketChannel serverSocketChannel;
     final private Selector selector;
     final private DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm:ss");
@@ -38,10 +44,20 @@ public class Server {
      * @param poolSize  Size of the thread pool that will handle server jobs
      */
     public Server(int port, int poolSize) {
+        this(new ServerConfig(port, poolSize));
+    }
+
+    /**
+     * Create a Server object.
+     * It is not guaranteed the server will open on the specified port if it is in use
+     * @param config    The desired port, thread pool size and options of the Server
+     */
+    public Server(ServerConfig config) {
         selector = openSelector();
 
-        // Set size of thread pool
-        this.poolSize = poolSize;
+        // Set size of thread pool and options
+        this.config = config;
+        int port = config.port;
 
         // Create nio server
         serverSocketChannel = openServerSocketChannel();
@@ -109,37 +125,173 @@ public class Server {
      * Start up a thread pool that handles the rest of the server's operations
      */
     public void startServer() throws InterruptedException {
-        ThreadPool threadPool = new ThreadPool(poolSize);
-        SelectorWork selectorWork = new SelectorWork(selector, serverSocketChannel, threadPool);
-        threadPool.registerWork(selectorWork);
+        if (config.ioMode == ServerConfig.IoMode.THREAD_PER_CONNECTION) {
+            startThreadPerConnection();
+            return;
+        }
+        ThreadPool threadPool = new ThreadPool(config.poolSize, config.poolMode);
+        if (config.getMaxThreads() > 0) {
+            threadPool.setElastic(config.getMaxThreads(), config.getQueueDelayTargetNanos(), config.getPoolIdleNanos());
+            System.out.println("Growing the thread pool up to " + config.getMaxThreads() + " threads while work waits "
+                    + "longer than " + config.getQueueDelayTargetNanos() / 1_000_000 + " ms");
+        }
+        int reactors = config.reactors;
+        SelectorWork[] selectorWorks;
+        if (reactors > 0) {
+            selectorWorks = new SelectorWork[reactors];
+            for (int i = 0; i < reactors; i++) {
+                Selector reactorSelector = openSelector();
+                if (reactorSelector == null) {
+                    return;
+                }
+                selectorWorks[i] = new SelectorWork(reactorSelector, threadPool, config);
+            }
+            threadPool.registerWork(new Acceptor(selector, serverSocketChannel, selectorWorks));
+            threadPool.registerWork(selectorWorks);
+        } else {
+            selectorWorks = new SelectorWork[] { new SelectorWork(selector, serverSocketChannel, threadPool, config) };
+            threadPool.registerWork(selectorWorks);
+        }
+        if (config.getCapturePath() != null) {
+            startCapture(selectorWorks);
+        }
+        if (config.isAdaptiveDispatch()) {
+            System.out.println("Hashing messages on the selector threads when that answers them sooner");
+        }
+        DigestCache cache = createCache();
+        if (cache != null) {
+            for (SelectorWork selectorWork : selectorWorks) {
+                selectorWork.setCache(cache);
+            }
+        }
+        if (config.metricsPort > 0) {
+            startMetrics(threadPool, selectorWorks);
+        }
         Thread threadPoolThread = new Thread(threadPool);
         threadPoolThread.start();
         while (true) {
             Thread.sleep(20000);
-            Report report = selectorWork.getReport();
-            System.out.printf("[" + dtf.format(LocalDateTime.now()) + "] Server Throughput: %f messages/s, Active Client Connections: %d, Mean Per-" +
-                    "client Throughput: %f messages/s, Std. Dev. Of Per" + "-client Throughput: %f messages/s\n",
-                    report.totalMessagesPerSecond, report.machinesRegistered, report.averageMessagesPerSecond, report.messageStdDev);
+            printReport(SelectorWork.getReport(selectorWorks));
         }
 
     }
 
-    public static void main(String args[]) {
-        int port, poolSize;
-        if (args.length < 2) {
-            System.err.println("Must specify arguments: [port] [thread pool size]");
+    /**
+     * Serve every connection on a thread of its own instead of from a Selector. Hashing happens on the connection's
+     * thread, or in a thread pool of --hash-pool threads
+     */
+    private void startThreadPerConnection() throws InterruptedException {
+        ThreadPool hashPool = null;
+        if (config.hashPoolSize > 0) {
+            hashPool = new ThreadPool(config.hashPoolSize, config.poolMode);
+            new Thread(hashPool).start();
+        }
+        ThreadPerConnection server = new ThreadPerConnection(selector, serverSocketChannel, hashPool);
+        DigestCache cache = createCache();
+        if (cache != null) {
+            server.setCache(cache);
+        }
+        new Thread(server).start();
+        System.out.println("Serving a " + (ThreadPerConnection.hasVirtualThreads() ? "virtual" : "platform")
+                + " thread per connection");
+        while (true) {
+            Thread.sleep(20000);
+            printReport(server.getReport());
+        }
+    }
+
+    /**
+     * Print a report in the server's log format
+     * @param report The report to print
+     */
+    private void printReport(Report report) {
+        System.out.printf("[" + dtf.format(LocalDateTime.now()) + "] Server Throughput: %f messages/s, Active Client Connections: %d, Mean Per-" +
+                "client Throughput: %f messages/s, Std. Dev. Of Per" + "-client Throughput: %f messages/s, Mean Batch Size: %f, " +
+                "Batch Limit: %d%s\n",
+                report.totalMessagesPerSecond, report.machinesRegistered, report.averageMessagesPerSecond, report.messageStdDev,
+                report.averageBatchSize, report.batchLimit, formatAlgorithms(report));
+    }
+
+    /**
+     * @return A digest cache as large as --cache asks for, or null if digests are not cached
+     */
+    private DigestCache createCache() {
+        if (config.getCacheBytes() == 0) {
+            return null;
+        }
+        System.out.println("Caching digests of up to " + config.getCacheBytes() / (1024 * 1024) + " MB of messages");
+        return new DigestCache(config.getCacheBytes());
+    }
+
+    /**
+     * Open the capture file and have every SelectorWork append the messages it reads to it. The server runs without
+     * capturing if the file can not be opened
+     * @param selectorWorks The SelectorWork objects to capture from
+     */
+    private void startCapture(SelectorWork[] selectorWorks) {
+        TrafficCapture capture;
+        try {
+            capture = TrafficCapture.open(config.getCapturePath());
+        } catch (IOException e) {
+            System.err.println("Server.class: Could not open capture file " + config.getCapturePath());
             return;
-        } else {
-            try {
-                port = Integer.parseInt(args[0].trim());
-                poolSize = Integer.parseInt(args[1].trim());
-            } catch (NumberFormatException e) {
-                System.err.println("Port and pool size must be a number");
-                return;
+        }
+        for (SelectorWork selectorWork : selectorWorks) {
+            selectorWork.setCapture(capture);
+        }
+        System.out.println("Capturing messages to: " + config.getCapturePath());
+    }
+
+    /**
+     * Open the metrics port and register the Work that serves it. The server runs without metrics if the port can
+     * not be opened
+     * @param threadPool The pool to run the MetricsWork in
+     * @param selectorWorks The SelectorWork objects to report on
+     */
+    private void startMetrics(ThreadPool threadPool, SelectorWork[] selectorWorks) {
+        Selector metricsSelector = openSelector();
+        ServerSocketChannel metricsChannel = openServerSocketChannel();
+        if (metricsSelector == null || metricsChannel == null) {
+            return;
+        }
+        try {
+            metricsChannel.socket().bind(new InetSocketAddress(config.metricsPort));
+            metricsChannel.configureBlocking(false);
+            metricsChannel.register(metricsSelector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            System.err.println("Server.class: Could not open metrics port " + config.metricsPort);
+            return;
+        }
+        threadPool.registerWork(new MetricsWork(metricsSelector, metricsChannel, new Metrics(threadPool, selectorWorks)));
+        System.out.println("Metrics served on port: " + config.metricsPort);
+    }
+
+    /**
+     * Format the per-algorithm throughput of a report, skipping algorithms no client has used
+     * @param report The report to format
+     * @return The throughput of each algorithm, each preceded by a comma
+     */
+    private static String formatAlgorithms(Report report) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Double> throughput : report.algorithmMessagesPerSecond.entrySet()) {
+            if (throughput.getValue() > 0) {
+                builder.append(String.format(", %s Throughput: %f messages/s", throughput.getKey(), throughput.getValue()));
             }
         }
+        return builder.toString();
+    }
+
+    public static void main(String args[]) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        int port = config.port;
 
-        Server server = new Server(port, poolSize);
+        Server server = new Server(config);
 
         if (server.getServerPort() > 0) {
             try {
@@ -0,0 +1,425 @@
+package cs455.scaling.server;
+
+import cs455.scaling.pool.FairFlow;
+import cs455.scaling.pool.ThreadPool;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Settings for a Server, parsed from the command line:</p>
+ * <pre>[port] [thread pool size] [options]</pre>
+ * <p>Options are given as a flag followed by a value:</p>
+ * <ul>
+ *     <li>--reactors N: accept on a dedicated thread and spread connections over N selector threads.
+ *     Without it, a single selector thread accepts, reads and writes for every client</li>
+ *     <li>--pool-mode managed|stealing|fair: how the thread pool hands out work</li>
+ *     <li>--io-mode selector|threads: serve connections from selectors and a thread pool (the default), or give
+ *     every connection a (virtual, where the JDK has them) thread of its own with blocking IO</li>
+ *     <li>--hash-pool N: in threads mode, hash in a thread pool of N threads instead of on each connection's
+ *     thread</li>
+ *     <li>--pipeline N: let each connection have up to N messages in flight</li>
+ *     <li>--metrics-port N: serve a Prometheus style metrics page on port N, from a thread of its own</li>
+ *     <li>--high-watermark N: once a selector has N messages in flight, stop reading from its heaviest connections
+ *     and refuse new ones until it is back down to the low watermark</li>
+ *     <li>--low-watermark N: where reading resumes, half the high watermark by default</li>
+ *     <li>--idle-timeout S: close connections that have not sent or received anything for S seconds</li>
+ *     <li>--codel-target MS: answer messages that have waited longer than MS milliseconds for a worker, for a whole
+ *     CoDel interval, with the busy code instead of a hash</li>
+ *     <li>--capture FILE: append every message read to FILE, to be replayed later by the Replay client</li>
+ *     <li>--cache MB: keep the SHA-1 and SHA-256 digests of up to MB megabytes of messages, so repeated messages are
+ *     looked up instead of hashed again</li>
+ *     <li>--client-class ADDRESS=TIER[:WEIGHT]: with --pool-mode fair, schedule clients whose IP address starts with
+ *     ADDRESS in priority tier TIER (0 to 2, 1 by default) with weight WEIGHT (1 by default). May be given more than
+ *     once; the first match applies</li>
+ *     <li>--dispatch offload|adaptive: hand every message to the thread pool (the default), or let a DispatchPolicy
+ *     hash cheap messages on the selector thread when that answers them sooner</li>
+ *     <li>--max-threads N: with --pool-mode managed, let the thread pool grow from its size up to N threads while
+ *     work waits longer than the queue delay target for a thread</li>
+ *     <li>--queue-delay-target MS: how long work may wait for a thread before an elastic pool grows, 5 by
+ *     default</li>
+ *     <li>--pool-idle S: how long a thread an elastic pool grew by may be idle before it retires, 30 by default</li>
+ * </ul>
+ */
+public class ServerConfig {
+
+    public static final String USAGE = "Must specify arguments: [port] [thread pool size] [options]\n"
+            + "Options: --reactors N, --pool-mode managed|stealing|fair, --pipeline N, --metrics-port N,\n"
+            + "         --high-watermark N, --low-watermark N, --codel-target MS, --idle-timeout S,\n"
+            + "         --io-mode selector|threads, --hash-pool N, --capture FILE,\n"
+            + "         --cache MB, --dispatch offload|adaptive, --client-class ADDRESS=TIER[:WEIGHT],\n"
+            + "         --max-threads N, --queue-delay-target MS, --pool-idle S";
+
+    /**
+     * How the server does its IO
+     */
+    public enum IoMode {
+        // Non-blocking IO driven by SelectorWork, with hashing in the thread pool
+        SELECTOR,
+        // Blocking IO on a thread per connection (see ThreadPerConnection)
+        THREAD_PER_CONNECTION
+    }
+
+    int port;
+    int poolSize;
+    // 0 runs a single SelectorWork that also accepts connections
+    int reactors = 0;
+    ThreadPool.Mode poolMode = ThreadPool.Mode.MANAGED;
+    IoMode ioMode = IoMode.SELECTOR;
+    // Threads hashing for a thread per connection server, 0 hashes on the connection's own thread
+    int hashPoolSize = 0;
+    // 0 answers each message before reading the next
+    int pipelineDepth = 0;
+    // 0 serves no metrics page
+    int metricsPort = 0;
+    // Messages in flight per selector at which reading is throttled, and at which it resumes. 0 never throttles
+    int highWatermark = 0;
+    int lowWatermark = -1;
+    // The CoDel sojourn target in milliseconds, 0 never sheds
+    int codelTarget = 0;
+    // Seconds without traffic before a connection is closed, 0 never closes idle connections
+    int idleTimeout = 0;
+    // The file messages are captured to, null captures nothing
+    String capturePath = null;
+    // Megabytes of messages and digests the digest cache may hold, 0 caches nothing
+    int cacheSize = 0;
+    // Whether selectors may hash messages themselves instead of handing every one to the thread pool
+    boolean adaptiveDispatch = false;
+    // The tier and weight of clients in a fair pool, by the start of their address, in the order given
+    final LinkedHashMap<String, int[]> clientClasses = new LinkedHashMap<>();
+    // The most threads an elastic pool may grow to, 0 keeps the pool at its size
+    int maxThreads = 0;
+    // How long work may wait for a thread in milliseconds before an elastic pool grows, -1 for the default
+    int queueDelayTarget = -1;
+    // Seconds a thread above the pool size may be idle before it retires, -1 for the default
+    int poolIdle = -1;
+
+    /**
+     * Create settings with every option at its default
+     * @param port      The desired port to run the Server on
+     * @param poolSize  Size of the thread pool that will handle server jobs
+     */
+    public ServerConfig(int port, int poolSize) {
+        this.port = port;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @return Settings with every option at its default, for objects created without a Server
+     */
+    public static ServerConfig defaults() {
+        return new ServerConfig(0, 0);
+    }
+
+    /**
+     * @return The most messages a connection may have in flight, or 0 if pipelining is off
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * @return The number of messages in flight per selector at which reading is throttled, or 0 to never throttle
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @return The number of messages in flight per selector at which reading resumes
+     */
+    public int getLowWatermark() {
+        return lowWatermark < 0 ? highWatermark / 2 : lowWatermark;
+    }
+
+    /**
+     * @return The CoDel sojourn target in nanoseconds, or 0 if messages are never shed
+     */
+    public long getCodelTargetNanos() {
+        return codelTarget * 1_000_000L;
+    }
+
+    /**
+     * @return How long a connection may go without traffic before it is closed in nanoseconds, or 0 to never close
+     * idle connections
+     */
+    public long getIdleTimeoutNanos() {
+        return idleTimeout * 1_000_000_000L;
+    }
+
+    /**
+     * @return The path of the file every message read is appended to, or null if nothing is captured
+     */
+    public String getCapturePath() {
+        return capturePath;
+    }
+
+    /**
+     * @return The most bytes the digest cache may hold, or 0 if digests are not cached
+     */
+    public long getCacheBytes() {
+        return cacheSize * 1024L * 1024L;
+    }
+
+    /**
+     * @return True if selectors decide per message whether to hash it themselves, false to offload every message
+     */
+    public boolean isAdaptiveDispatch() {
+        return adaptiveDispatch;
+    }
+
+    /**
+     * @return The most threads the thread pool may grow to, or 0 if it is not elastic
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * @return How long work may wait for a thread before an elastic pool grows, in nanoseconds
+     */
+    public long getQueueDelayTargetNanos() {
+        return (queueDelayTarget < 0 ? 5 : queueDelayTarget) * 1_000_000L;
+    }
+
+    /**
+     * @return How long a thread above the pool size may be idle before an elastic pool retires it, in nanoseconds
+     */
+    public long getPoolIdleNanos() {
+        return (poolIdle < 0 ? 30 : poolIdle) * 1_000_000_000L;
+    }
+
+    /**
+     * @param address The IP address of a client, as text
+     * @return The priority tier the client's Work is scheduled in by a fair pool
+     */
+    public int getClientTier(String address) {
+        int[] clientClass = clientClass(address);
+        return clientClass == null ? FairFlow.DEFAULT_TIER : clientClass[0];
+    }
+
+    /**
+     * @param address The IP address of a client, as text
+     * @return The weight of the client's Work within its tier in a fair pool
+     */
+    public int getClientWeight(String address) {
+        int[] clientClass = clientClass(address);
+        return clientClass == null ? 1 : clientClass[1];
+    }
+
+    /**
+     * @return The tier and weight of the first --client-class matching the address, or null if none does
+     */
+    private int[] clientClass(String address) {
+        for (Map.Entry<String, int[]> entry : clientClasses.entrySet()) {
+            if (address.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse the Server's command line arguments
+     * @param args The arguments given to Server.main
+     * @return The parsed settings
+     * @throws IllegalArgumentException If an argument is missing or malformed, with a message describing the problem
+     */
+    public static ServerConfig parse(String[] args) {
+        if (args.length < 2) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        ServerConfig config;
+        try {
+            config = new ServerConfig(Integer.parseInt(args[0].trim()), Integer.parseInt(args[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Port and pool size must be a number");
+        }
+        for (int i = 2; i < args.length; i += 2) {
+            String flag = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + flag);
+            }
+            String value = args[i + 1].trim();
+            switch (flag) {
+                case "--reactors":
+                    config.reactors = parseCount(flag, value);
+                    break;
+                case "--pool-mode":
+                    config.poolMode = parsePoolMode(value);
+                    break;
+                case "--io-mode":
+                    config.ioMode = parseIoMode(value);
+                    break;
+                case "--hash-pool":
+                    config.hashPoolSize = parseCount(flag, value);
+                    break;
+                case "--pipeline":
+                    config.pipelineDepth = parseCount(flag, value);
+                    break;
+                case "--metrics-port":
+                    config.metricsPort = parseCount(flag, value);
+                    break;
+                case "--high-watermark":
+                    config.highWatermark = parseCount(flag, value);
+                    break;
+                case "--low-watermark":
+                    config.lowWatermark = parseCount(flag, value);
+                    break;
+                case "--codel-target":
+                    config.codelTarget = parseCount(flag, value);
+                    break;
+                case "--idle-timeout":
+                    config.idleTimeout = parseCount(flag, value);
+                    break;
+                case "--capture":
+                    config.capturePath = value;
+                    break;
+                case "--cache":
+                    config.cacheSize = parseCount(flag, value);
+                    break;
+                case "--dispatch":
+                    config.adaptiveDispatch = parseDispatch(value);
+                    break;
+                case "--client-class":
+                    parseClientClass(config, value);
+                    break;
+                case "--max-threads":
+                    config.maxThreads = parseCount(flag, value);
+                    break;
+                case "--queue-delay-target":
+                    config.queueDelayTarget = parseCount(flag, value);
+                    break;
+                case "--pool-idle":
+                    config.poolIdle = parseCount(flag, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + flag + "\n" + USAGE);
+            }
+        }
+        if (config.ioMode == IoMode.THREAD_PER_CONNECTION) {
+            if (config.reactors > 0 || config.metricsPort > 0 || config.pipelineDepth > 0 || config.highWatermark > 0
+                    || config.codelTarget > 0 || config.idleTimeout > 0 || config.capturePath != null
+                    || config.adaptiveDispatch || !config.clientClasses.isEmpty() || config.maxThreads > 0
+                    || config.queueDelayTarget >= 0 || config.poolIdle >= 0) {
+                throw new IllegalArgumentException("--io-mode threads only supports --hash-pool, --pool-mode and --cache");
+            }
+            return config;
+        }
+        if (!config.clientClasses.isEmpty() && config.poolMode != ThreadPool.Mode.FAIR) {
+            throw new IllegalArgumentException("--client-class needs --pool-mode fair");
+        }
+        if (config.maxThreads == 0 && (config.queueDelayTarget >= 0 || config.poolIdle >= 0)) {
+            throw new IllegalArgumentException("--queue-delay-target and --pool-idle need --max-threads");
+        }
+        if (config.maxThreads > 0 && config.poolMode != ThreadPool.Mode.MANAGED) {
+            throw new IllegalArgumentException("--max-threads needs --pool-mode managed");
+        }
+        if (config.maxThreads > 0 && config.maxThreads <= config.poolSize) {
+            throw new IllegalArgumentException("--max-threads must be greater than the thread pool size");
+        }
+        if (config.lowWatermark >= 0 && config.lowWatermark >= config.highWatermark) {
+            throw new IllegalArgumentException("--low-watermark must be below --high-watermark");
+        }
+        // Every reactor, the acceptor and the metrics endpoint hold a pool thread for good
+        if ((config.reactors > 0 || config.metricsPort > 0) && config.poolSize <= config.dedicatedThreads()) {
+            throw new IllegalArgumentException("Thread pool size must be greater than the "
+                    + config.dedicatedThreads() + " threads held by selectors, the acceptor and the metrics endpoint");
+        }
+        return config;
+    }
+
+    /**
+     * @return The number of pool threads the server's selectors, acceptor and metrics endpoint hold for good
+     */
+    int dedicatedThreads() {
+        int threads = reactors > 0 ? reactors + 1 : 1;
+        return metricsPort > 0 ? threads + 1 : threads;
+    }
+
+    /**
+     * Parse the name of a ThreadPool.Mode
+     */
+    private static ThreadPool.Mode parsePoolMode(String value) {
+        switch (value) {
+            case "managed":
+                return ThreadPool.Mode.MANAGED;
+            case "stealing":
+                return ThreadPool.Mode.WORK_STEALING;
+            case "fair":
+                return ThreadPool.Mode.FAIR;
+            default:
+                throw new IllegalArgumentException("--pool-mode must be managed, stealing or fair");
+        }
+    }
+
+    /**
+     * Parse the name of an IoMode
+     */
+    private static IoMode parseIoMode(String value) {
+        switch (value) {
+            case "selector":
+                return IoMode.SELECTOR;
+            case "threads":
+                return IoMode.THREAD_PER_CONNECTION;
+            default:
+                throw new IllegalArgumentException("--io-mode must be selector or threads");
+        }
+    }
+
+    /**
+     * Parse ADDRESS=TIER[:WEIGHT] and add it to the client classes
+     */
+    private static void parseClientClass(ServerConfig config, String value) {
+        int equals = value.indexOf('=');
+        if (equals <= 0) {
+            throw new IllegalArgumentException("--client-class must be given as ADDRESS=TIER[:WEIGHT]");
+        }
+        String[] parts = value.substring(equals + 1).split(":");
+        int tier;
+        int weight = 1;
+        try {
+            tier = Integer.parseInt(parts[0]);
+            if (parts.length > 1) {
+                weight = Integer.parseInt(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--client-class tier and weight must be numbers");
+        }
+        if (tier < 0 || tier >= FairFlow.TIERS || weight < 1 || parts.length > 2) {
+            throw new IllegalArgumentException("--client-class tier must be 0 to " + (FairFlow.TIERS - 1)
+                    + " and weight positive");
+        }
+        config.clientClasses.put(value.substring(0, equals), new int[] { tier, weight });
+    }
+
+    /**
+     * Parse the name of a dispatch mode
+     * @return True for adaptive
+     */
+    private static boolean parseDispatch(String value) {
+        switch (value) {
+            case "offload":
+                return false;
+            case "adaptive":
+                return true;
+            default:
+                throw new IllegalArgumentException("--dispatch must be offload or adaptive");
+        }
+    }
+
+    /**
+     * Parse a value that must be a positive integer
+     */
+    private static int parseCount(String flag, String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count > 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the exception below
+        }
+        throw new IllegalArgumentException(flag + " must be a positive number");
+    }
+}
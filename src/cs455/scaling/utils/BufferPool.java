@@ -0,0 +1,96 @@
+package cs455.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * <p>A pool of fixed size direct ByteBuffers. Buffers are sliced out of large direct slabs so that the
+ * Selector never allocates (or garbage collects) memory for an individual message.</p>
+ * <p>Buffers are handed out as PooledBuffers, which are reference counted and return themselves to the pool
+ * once every holder has released them. Acquiring and releasing are thread safe, so a buffer can be acquired on a
+ * Selector thread and released by a worker thread.</p>
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final ArrayDeque<PooledBuffer> free;
+    private int slabs;
+
+    /**
+     * Create a pool and allocate its first slab
+     * @param bufferSize The capacity of each buffer in the pool
+     * @param buffersPerSlab The number of buffers to slice out of each slab. The pool grows by one slab
+     *                       whenever it runs out of free buffers
+     */
+    public BufferPool(int bufferSize, int buffersPerSlab) {
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        free = new ArrayDeque<>(buffersPerSlab);
+        addSlab();
+    }
+
+    /**
+     * Allocate a new direct slab and add each of its slices to the free list. Must hold the lock on free
+     */
+    private void addSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+        for (int i = 0; i < buffersPerSlab; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            free.add(new PooledBuffer(this, slab.slice()));
+        }
+        slabs++;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, growing the pool if necessary
+     * @return A PooledBuffer with a reference count of 1
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer buffer;
+        synchronized (free) {
+            if (free.isEmpty()) {
+                addSlab();
+            }
+            buffer = free.poll();
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Put a buffer back on the free list. Called by PooledBuffer when its reference count drops to 0
+     * @param buffer The buffer to return
+     */
+    void recycle(PooledBuffer buffer) {
+        synchronized (free) {
+            free.push(buffer);
+        }
+    }
+
+    /**
+     * @return The capacity of every buffer handed out by this pool
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return The number of buffers currently waiting in the pool
+     */
+    public int getFreeCount() {
+        synchronized (free) {
+            return free.size();
+        }
+    }
+
+    /**
+     * @return The total number of bytes the pool has allocated
+     */
+    public long getAllocatedBytes() {
+        synchronized (free) {
+            return (long) slabs * buffersPerSlab * bufferSize;
+        }
+    }
+}
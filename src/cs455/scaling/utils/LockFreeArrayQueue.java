@@ -0,0 +1,238 @@
+package cs455.scaling.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ *     A bounded, array backed queue that any number of threads can add to and remove from without locking.
+ *     Every slot of the array carries a sequence number that tells producers and consumers whose turn it is to use
+ *     the slot, so an add or a poll is a single compare-and-set on the tail or head counter. No node is allocated
+ *     per element.
+ * </p><p>
+ *     offer and poll never wait. put and take wait for space or an element. With parking enabled, waiting threads
+ *     park until another thread makes progress, otherwise they yield in a loop, which is only sensible when waits
+ *     are expected to be very short.
+ * </p><p>
+ *     The add, poll, take and size methods match BlockingLinkedList, apart from uniqueness: an element can be in
+ *     the queue more than once, and add waits for space instead of failing.
+ * </p>
+ * @param <T> The class of objects the queue should hold
+ */
+public class LockFreeArrayQueue<T> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    // The position of the next add and the next poll
+    private final AtomicLong tail;
+    private final AtomicLong head;
+
+    private final boolean parking;
+    // Threads parked in take waiting for an element, and in put waiting for space
+    private final ConcurrentLinkedQueue<Thread> takers;
+    private final ConcurrentLinkedQueue<Thread> putters;
+
+    /**
+     * Create a queue whose waiting threads park
+     * @param capacity The maximum number of elements. Rounded up to a power of 2
+     */
+    public LockFreeArrayQueue(int capacity) {
+        this(capacity, true);
+    }
+
+    /**
+     * Create a queue
+     * @param capacity The maximum number of elements. Rounded up to a power of 2
+     * @param parking True if threads waiting in put or take should park, false if they should yield in a loop
+     */
+    public LockFreeArrayQueue(int capacity, boolean parking) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("LockFreeArrayQueue: capacity must be between 1 and 2^30");
+        }
+        int rounded = 1;
+        while (rounded < capacity) {
+            rounded <<= 1;
+        }
+        this.capacity = rounded;
+        mask = this.capacity - 1;
+        elements = new AtomicReferenceArray<>(this.capacity);
+        sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+        tail = new AtomicLong();
+        head = new AtomicLong();
+        this.parking = parking;
+        takers = new ConcurrentLinkedQueue<>();
+        putters = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Add an element to the end of the queue if there is room
+     * @param t The element to add, which must not be null
+     * @return True if the element was added, false if the queue is full
+     */
+    public boolean offer(T t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                // The slot is free for this position
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, t);
+                    sequences.set(index, position + 1);
+                    wake(takers);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot still holds the element from one lap ago
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Retrieve and remove the first element of the queue if there is one
+     * @return The first element of the queue or null if the queue is empty
+     */
+    public T poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                // The slot holds the element for this position
+                if (head.compareAndSet(position, position + 1)) {
+                    T t = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + capacity);
+                    wake(putters);
+                    return t;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                // Nothing has been added at this position yet
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Add an element to the end of the queue, waiting for room if necessary
+     * @param t The element to add, which must not be null
+     * @throws InterruptedException on interrupt
+     */
+    public void put(T t) throws InterruptedException {
+        while (!offer(t)) {
+            await(putters, true);
+        }
+    }
+
+    /**
+     * Add an element to the end of the queue, waiting for room if necessary. Matches BlockingLinkedList.add
+     * @param t The element to add, which must not be null
+     * @return True once the element has been added, false if the thread was interrupted while waiting
+     */
+    public boolean add(T t) {
+        try {
+            put(t);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Retrieve and remove the first element of the queue, waiting if necessary
+     * @return The first element of the queue
+     * @throws InterruptedException on interrupt
+     */
+    public T take() throws InterruptedException {
+        T t;
+        while ((t = poll()) == null) {
+            await(takers, false);
+        }
+        return t;
+    }
+
+    /**
+     * Wait until the queue may have changed. A parking thread adds itself to the waiters before checking the queue a
+     * final time, so a change made after that check always unparks it
+     * @param waiters The threads waiting for the same change as this one
+     * @param forSpace True if waiting for room to add, false if waiting for an element
+     * @throws InterruptedException on interrupt
+     */
+    private void await(ConcurrentLinkedQueue<Thread> waiters, boolean forSpace) throws InterruptedException {
+        if (!parking) {
+            Thread.yield();
+        } else {
+            Thread thread = Thread.currentThread();
+            waiters.add(thread);
+            if (forSpace ? size() >= capacity : isEmpty()) {
+                LockSupport.park(this);
+            }
+            waiters.remove(thread);
+        }
+        if (Thread.interrupted()) {
+            // Pass the chance to make progress on to another waiter
+            wake(waiters);
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Unpark one thread waiting on the queue, if any
+     */
+    private void wake(ConcurrentLinkedQueue<Thread> waiters) {
+        if (!waiters.isEmpty()) {
+            Thread thread = waiters.poll();
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Return the number of elements in the queue. The value is a snapshot and may be out of date as soon as it is
+     * returned
+     * @return The number of elements, between 0 and the capacity
+     */
+    public int size() {
+        while (true) {
+            long before = head.get();
+            long size = tail.get() - before;
+            if (head.get() == before) {
+                return (int) Math.max(0, Math.min(size, capacity));
+            }
+        }
+    }
+
+    /**
+     * @return True if the queue held no elements when checked
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return The maximum number of elements the queue can hold
+     */
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,60 @@
+package cs455.scaling.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted slice of a BufferPool slab. Every holder that calls retain must call release exactly once,
+ * and the buffer goes back to its pool when the last holder releases it.
+ */
+public class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+        references = new AtomicInteger();
+    }
+
+    /**
+     * Prepare the buffer to be handed out by the pool
+     */
+    void reset() {
+        buffer.clear();
+        references.set(1);
+    }
+
+    /**
+     * Get the underlying buffer. It must not be used after the last release
+     * @return The direct ByteBuffer slice
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Add a holder to the buffer
+     * @return this, for chaining
+     */
+    public PooledBuffer retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("PooledBuffer: retain after release");
+        }
+        return this;
+    }
+
+    /**
+     * Drop a holder from the buffer, returning it to the pool if it was the last one
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("PooledBuffer: released too many times");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cs455.scaling.work;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * <p>Accepts incoming connections for a multi-reactor server. It requires 1 thread to run, and it will not release
+ * the Thread until the Selector is closed.</p>
+ * <p>Every accepted SocketChannel is handed to the SelectorWork (reactor) with the fewest open connections, starting
+ * the search after the reactor that was picked last so ties are broken round-robin. All reading, writing and
+ * dispatching for the connection is then done by that reactor's own Selector.</p>
+ */
+public class Acceptor extends Work {
+
+    // A Selector for the server's serverChannel only
+    private final Selector selector;
+    // The channel the server is listening on for incoming connections
+    private final ServerSocketChannel serverChannel;
+    // The reactors accepted connections are handed to
+    private final SelectorWork[] reactors;
+    // The reactor picked for the last connection
+    private int last;
+
+    /**
+     * @param selector The selector the serverChannel is registered to for OP_ACCEPT
+     * @param serverChannel The channel that listens for incoming connections on the server
+     * @param reactors The SelectorWork objects accepted connections are spread over
+     */
+    public Acceptor(Selector selector, ServerSocketChannel serverChannel, SelectorWork... reactors) {
+        threadsNeeded = 1;
+        this.selector = selector;
+        this.serverChannel = serverChannel;
+        this.reactors = reactors;
+        last = reactors.length - 1;
+    }
+
+    /**
+     * Pick the least loaded reactor, preferring the reactors after the last one picked on a tie
+     * @return The reactor the next connection should go to
+     */
+    private SelectorWork nextReactor() {
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 1; i <= reactors.length; i++) {
+            int candidate = (last + i) % reactors.length;
+            int count = reactors[candidate].getConnectionCount();
+            if (count < bestCount) {
+                best = candidate;
+                bestCount = count;
+            }
+        }
+        last = best;
+        return reactors[best];
+    }
+
+    /**
+     * Accept every pending connection and hand each one to a reactor
+     */
+    private void acceptConnections() throws IOException {
+        SocketChannel newChannel;
+        while ((newChannel = serverChannel.accept()) != null) {
+            nextReactor().addChannel(newChannel);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selection = iterator.next();
+                    if (selection.isAcceptable()) {
+                        acceptConnections();
+                    }
+                    iterator.remove();
+                }
+            } catch (IOException e) {
+                System.err.println("Acceptor: IOException from Selector");
+            }
+        }
+    }
+}
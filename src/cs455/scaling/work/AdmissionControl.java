@@ -0,0 +1,80 @@
+package cs455.scaling.work;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Decides when a SelectorWork is overloaded, from the number of messages it has in flight: read and handed to the
+ * thread pool, or hashed and waiting to be written. That covers both the work queued in the pool and the output
+ * queued for clients.</p>
+ * <p>The SelectorWork becomes overloaded once the count reaches the high watermark, and stays overloaded until it
+ * has fallen to the low watermark, so it does not flap around a single threshold. While overloaded, the heaviest
+ * connections are not read from and new connections are refused.</p>
+ * <p>update is only called by the SelectorWork thread. The state and statistics can be read from any thread.</p>
+ */
+public class AdmissionControl {
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private volatile boolean overloaded;
+
+    // Connections refused and times the watermark was crossed since the server started
+    private final AtomicLong refused;
+    private final AtomicLong overloads;
+
+    /**
+     * @param highWatermark The number of messages in flight at which reading is throttled, or 0 to never throttle
+     * @param lowWatermark The number of messages in flight at which reading resumes. Must be below highWatermark
+     */
+    AdmissionControl(int highWatermark, int lowWatermark) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        refused = new AtomicLong();
+        overloads = new AtomicLong();
+    }
+
+    /**
+     * Update the overloaded state. Called once per select pass
+     * @param inFlight The number of messages the SelectorWork has in flight
+     * @return True if the SelectorWork is overloaded
+     */
+    boolean update(long inFlight) {
+        if (highWatermark == 0) {
+            return false;
+        }
+        if (!overloaded && inFlight >= highWatermark) {
+            overloaded = true;
+            overloads.incrementAndGet();
+        } else if (overloaded && inFlight <= lowWatermark) {
+            overloaded = false;
+        }
+        return overloaded;
+    }
+
+    /**
+     * Record that a new connection was refused
+     */
+    void refuse() {
+        refused.incrementAndGet();
+    }
+
+    /**
+     * @return True if the SelectorWork was overloaded at its last select pass
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * @return The number of connections refused since the server started
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+
+    /**
+     * @return The number of times the high watermark has been reached since the server started
+     */
+    public long getOverloads() {
+        return overloads.get();
+    }
+}
@@ -0,0 +1,87 @@
+package cs455.scaling.work;
+
+import cs455.scaling.pool.ThreadPool;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Decides how many messages a SelectorWork puts into each ScalingMessageWork, based on how much Work is already
+ * waiting in the thread pool.</p>
+ * <p>While there are fewer queued tasks than worker threads, a message is dispatched as soon as it is read, which keeps
+ * latency low when the server is idle. Once Work starts queueing up, the per-task scheduling overhead is spread over
+ * larger batches: the target is one more message per batch for every queued task per worker, up to MAX_BATCH. The
+ * limit doubles or halves towards the target once per select pass so it does not jump around with every sample.</p>
+ * <p>update and record are only called by the SelectorWork thread. The statistics can be read from any thread.</p>
+ */
+public class BatchPolicy {
+
+    // The most messages a single ScalingMessageWork will hash
+    public static final int MAX_BATCH = 32;
+
+    private final ThreadPool threadPool;
+    private volatile int limit;
+
+    // Batches and messages dispatched since the last report
+    private final AtomicLong batches;
+    private final AtomicLong messages;
+
+    /**
+     * @param threadPool The thread pool whose queue depth drives the batch size
+     */
+    BatchPolicy(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+        limit = 1;
+        batches = new AtomicLong();
+        messages = new AtomicLong();
+    }
+
+    /**
+     * Move the batch limit towards the target for the current queue depth. Called once per select pass
+     * @return The new batch limit
+     */
+    int update() {
+        int workers = Math.max(1, threadPool.getWorkerCount());
+        int queued = threadPool.getQueuedWork();
+        int target = queued < workers ? 1 : Math.min(MAX_BATCH, 1 + queued / workers);
+        int current = limit;
+        if (target > current) {
+            current = Math.min(target, current * 2);
+        } else if (target < current) {
+            current = Math.max(target, current / 2);
+        }
+        limit = current;
+        return current;
+    }
+
+    /**
+     * @return The current batch limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Count a dispatched batch
+     * @param size The number of messages in the batch
+     */
+    void record(int size) {
+        batches.incrementAndGet();
+        messages.addAndGet(size);
+    }
+
+    /**
+     * Take the number of batches dispatched since the last call, and reset it
+     * @return The batch count
+     */
+    long takeBatches() {
+        return batches.getAndSet(0);
+    }
+
+    /**
+     * Take the number of messages dispatched since the last call, and reset it
+     * @return The message count
+     */
+    long takeMessages() {
+        return messages.getAndSet(0);
+    }
+}
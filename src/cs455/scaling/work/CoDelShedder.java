@@ -0,0 +1,90 @@
+package cs455.scaling.work;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Sheds messages that have waited too long for a worker, following the CoDel (controlled delay) queue management
+ * algorithm. The time a batch spent between being read and being picked up by a worker is its sojourn time.</p>
+ * <p>Once every sojourn time for a whole interval has been above the target, the shedder starts dropping: it sheds
+ * a batch, and keeps shedding batches at intervals that shrink with the square root of the number shed, until a
+ * sojourn time falls below the target again. A short burst is absorbed untouched, while a standing queue is drained
+ * by answering with a busy code instead of hashing.</p>
+ * <p>shouldShed is called by worker threads, once per batch.</p>
+ */
+public class CoDelShedder {
+
+    // How long sojourn times must stay above the target before shedding starts, in nanoseconds
+    private static final long INTERVAL = 100_000_000L;
+
+    private final long target;
+
+    // When the sojourn time first went above the target, plus INTERVAL. 0 while below the target
+    private long firstAboveTime;
+    private boolean dropping;
+    private long dropNext;
+    private int count;
+
+    // Messages shed since the server started
+    private final AtomicLong shed;
+
+    /**
+     * @param targetNanos The sojourn time the shedder keeps the queue at
+     */
+    CoDelShedder(long targetNanos) {
+        target = targetNanos;
+        shed = new AtomicLong();
+    }
+
+    /**
+     * Decide whether a batch should be answered with the busy code instead of being hashed
+     * @param sojournNanos How long the batch waited between being read and reaching a worker
+     * @param messages The number of messages in the batch, counted as shed if it is
+     * @return True if the batch should be shed
+     */
+    synchronized boolean shouldShed(long sojournNanos, int messages) {
+        long now = System.nanoTime();
+        boolean okToDrop = false;
+        if (sojournNanos < target) {
+            firstAboveTime = 0;
+        } else if (firstAboveTime == 0) {
+            firstAboveTime = now + INTERVAL;
+        } else {
+            okToDrop = now - firstAboveTime >= 0;
+        }
+
+        boolean drop = false;
+        if (dropping) {
+            if (!okToDrop) {
+                dropping = false;
+            } else if (now - dropNext >= 0) {
+                count++;
+                dropNext = controlLaw(dropNext);
+                drop = true;
+            }
+        } else if (okToDrop) {
+            dropping = true;
+            // Start close to the last drop rate if the queue was only briefly under control
+            count = count > 2 && now - dropNext < 16 * INTERVAL ? count - 2 : 1;
+            dropNext = controlLaw(now);
+            drop = true;
+        }
+        if (drop) {
+            shed.addAndGet(messages);
+        }
+        return drop;
+    }
+
+    /**
+     * @return The time of the next drop after t, for the current drop count
+     */
+    private long controlLaw(long t) {
+        return t + (long) (INTERVAL / Math.sqrt(count));
+    }
+
+    /**
+     * @return The number of messages shed since the server started
+     */
+    public long getShed() {
+        return shed.get();
+    }
+}
@@ -0,0 +1,480 @@
+package cs455.scaling.work;
+
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.message.HashMessage;
+import cs455.scaling.message.Message;
+import cs455.scaling.pool.FairFlow;
+import cs455.scaling.server.ReportCounter;
+import cs455.scaling.utils.BufferPool;
+import cs455.scaling.utils.Histogram;
+import cs455.scaling.utils.LockFreeArrayQueue;
+import cs455.scaling.utils.PooledBuffer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>The state of a single client connection, kept as the attachment of the connection's SelectionKey.</p>
+ * <p>The first byte a client sends is a handshake: the id of the HashAlgorithm (see HashAlgorithms) every message
+ * on the connection is answered with. Messages follow straight after it: 8 KB each, or, if the handshake also set
+ * HashAlgorithms.FRAMED, length-prefixed frames of any size that a FrameStream hashes as they arrive.</p>
+ * <p>Reading is incremental: each call to read takes whatever bytes the socket has ready and returns straight away,
+ * keeping a partially received message until the rest of it arrives. Reads scatter into several pooled buffers at
+ * once, so a single read can bring in (and cut out) several messages.</p>
+ * <p>Each Connection also keeps its own queue of HashMessages waiting to be written back to the client. Worker
+ * threads add finished hashes to it through the HashCommunication interface, so a write only ever touches the data
+ * of the connection being written to. Every hash that is ready is coalesced into one outgoing buffer and flushed with
+ * a single write; bytes the socket does not take are kept for the next flush. Adding hashes to an empty queue puts
+ * the connection on its SelectorWork's completion queue, at most once until the SelectorWork has taken it.</p>
+ * <p>Apart from communicate, a Connection is only used by the SelectorWork thread its channel is registered with.</p>
+ */
+public class Connection implements HashCommunication {
+
+    // The number of messages a single read can bring in
+    private static final int READ_FRAMES = 4;
+
+    private final SocketChannel channel;
+    private final SocketAddress address;
+    private final BufferPool bufferPool;
+    // Messages answered on this connection since the last report
+    private final ReportCounter counter;
+
+    // Buffers the next read scatters into. frames[0] holds the message currently being received
+    private final PooledBuffer[] frames;
+    private final ByteBuffer[] window;
+
+    // The algorithm chosen in the handshake, null until the handshake has been read
+    private HashAlgorithm algorithm;
+    private final ByteBuffer handshake;
+    // Receives and hashes the messages if the client chose length-prefixed frames, otherwise null
+    private FrameStream stream;
+
+    // Hashes that are ready to be written to the client. Adding to it does not allocate
+    private final LockFreeArrayQueue<HashMessage> pendingWrites;
+    // Messages read from the client that have not been answered yet
+    private final AtomicInteger pending;
+    // The most messages the connection may have in flight before reading stops, 0 if not pipelined
+    private final int pipelineDepth;
+    // Hex hashes waiting to be written. Kept flipped for reading between flushes
+    private final ByteBuffer output;
+    // The reactor the channel is registered with, and the key it was registered under
+    private final SelectorWork reactor;
+    private SelectionKey key;
+    // Set while the connection is on the reactor's completion queue
+    private final AtomicBoolean scheduled;
+    // The number of messages completed by the last read
+    private int lastRead;
+    // Set while the reactor has stopped reading from the connection because it is overloaded
+    private boolean paused;
+    // System.nanoTime() of the last read or write that moved any bytes
+    private long lastActive;
+    // Set once the connection is closed. Hashes that arrive afterwards are dropped
+    private volatile boolean closed;
+    // The flow a FAIR thread pool schedules the connection's Work in, null otherwise
+    private FairFlow flow;
+
+    /**
+     * @param channel The accepted channel of the client
+     * @param bufferPool The pool incoming messages are read into
+     * @param pipelineDepth The most messages the connection may have in flight, or 0 if it is not pipelined
+     * @param reactor The SelectorWork the channel is registered with
+     * @throws IOException If the channel's remote address can not be read
+     */
+    Connection(SocketChannel channel, BufferPool bufferPool, int pipelineDepth, SelectorWork reactor)
+            throws IOException {
+        this.channel = channel;
+        this.address = channel.getRemoteAddress();
+        this.bufferPool = bufferPool;
+        counter = new ReportCounter(address);
+        frames = new PooledBuffer[READ_FRAMES];
+        window = new ByteBuffer[READ_FRAMES];
+        handshake = ByteBuffer.allocate(1);
+        this.pipelineDepth = pipelineDepth;
+        // Reading only happens below the depth, and a single read can complete READ_FRAMES more messages
+        pendingWrites = new LockFreeArrayQueue<>(Math.max(1, pipelineDepth) + READ_FRAMES);
+        pending = new AtomicInteger();
+        output = ByteBuffer.allocateDirect(pendingWrites.capacity() * HashAlgorithms.MAX_LENGTH * 2);
+        output.flip();
+        this.reactor = reactor;
+        scheduled = new AtomicBoolean();
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * @return The address of the client on the other end of the connection
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return The counter of messages answered on this connection
+     */
+    ReportCounter getCounter() {
+        return counter;
+    }
+
+    /**
+     * @return The algorithm chosen by the client, or null if its handshake has not arrived yet
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param flow The flow a FAIR thread pool should schedule the connection's Work in
+     */
+    void setFlow(FairFlow flow) {
+        this.flow = flow;
+    }
+
+    /**
+     * @return The flow the connection's Work is scheduled in, or null if the pool is not FAIR
+     */
+    FairFlow getFlow() {
+        return flow;
+    }
+
+    /**
+     * @return The client's channel
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Read the bytes that are ready on the channel without waiting for more. Every message completed by the read is
+     * added to ready, and the owner of each Message becomes responsible for releasing it.
+     * @param ready The list to add completed messages to
+     * @return The number of bytes read, or, for a connection sending frames, the number of frames started. -1 if the
+     *         client has closed the connection
+     * @throws IOException If the read fails or the client asks for an unknown algorithm
+     */
+    int read(ArrayList<Message> ready) throws IOException {
+        if (algorithm == null) {
+            int read = channel.read(handshake);
+            if (read <= 0) {
+                return read;
+            }
+            lastActive = System.nanoTime();
+            byte id = handshake.get(0);
+            algorithm = reactor.algorithmFor((byte) (id & ~HashAlgorithms.FRAMED));
+            if (algorithm == null) {
+                throw new IOException("Connection: unknown hash algorithm " + id + " from " + address);
+            }
+            if ((id & HashAlgorithms.FRAMED) != 0) {
+                stream = new FrameStream(this, algorithm, bufferPool, reactor);
+            }
+        }
+        if (stream != null) {
+            int started = stream.read(channel, pending.get(), pipelineDepth);
+            if (started < 0) {
+                return -1;
+            }
+            lastRead = started;
+            lastActive = System.nanoTime();
+            return started;
+        }
+        for (int i = 0; i < READ_FRAMES; i++) {
+            if (frames[i] == null) {
+                frames[i] = bufferPool.acquire();
+            }
+            window[i] = frames[i].getBuffer();
+        }
+
+        lastRead = 0;
+        long read = channel.read(window);
+        if (read <= 0) {
+            releaseSpares(1);
+            return (int) read;
+        }
+        lastActive = System.nanoTime();
+
+        // Cut out every full message, then move the partial message (if any) to the front of the window
+        int next = 0;
+        long now = 0;
+        for (int i = 0; i < READ_FRAMES; i++) {
+            ByteBuffer buffer = window[i];
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                Message message = new Message(frames[i], address, algorithm);
+                if (now == 0) {
+                    now = System.nanoTime();
+                }
+                message.setReceivedNanos(now);
+                ready.add(message);
+                lastRead++;
+                frames[i] = null;
+            } else {
+                if (buffer.position() > 0) {
+                    PooledBuffer partial = frames[i];
+                    frames[i] = null;
+                    frames[next++] = partial;
+                }
+                break;
+            }
+        }
+        releaseSpares(next);
+        return (int) read;
+    }
+
+    /**
+     * Return the unused buffers of the window to the pool, keeping the first keep buffers
+     * @param keep The number of buffers at the front of the window to hold on to
+     */
+    private void releaseSpares(int keep) {
+        for (int i = keep; i < READ_FRAMES; i++) {
+            if (frames[i] != null) {
+                frames[i].release();
+                frames[i] = null;
+            }
+            window[i] = null;
+        }
+    }
+
+    /**
+     * Record that messages read from this connection have been handed to the thread pool
+     * @param messages The number of messages dispatched
+     */
+    void dispatched(int messages) {
+        pending.addAndGet(messages);
+    }
+
+    /**
+     * Add finished hashes to the connection's write queue. Called by worker threads
+     * @param hash The hashes of messages read from this connection
+     */
+    @Override
+    public void communicate(ArrayList<HashMessage> hash) {
+        if (closed) {
+            return;
+        }
+        for (int i = 0; i < hash.size(); i++) {
+            pendingWrites.add(hash.get(i));
+        }
+        reactor.addPendingWriteBytes(hash.size() * algorithm.getLength() * 2);
+        schedule();
+        if (closed) {
+            dropWrites();
+        }
+    }
+
+    /**
+     * @param index Ignored, every message of the list passed to communicate comes from this connection
+     * @return True if the connection has closed
+     */
+    @Override
+    public boolean isCancelled(int index) {
+        return closed;
+    }
+
+    /**
+     * Add one finished hash to the connection's write queue. Called by worker threads
+     * @param hash The hash of a message read from this connection
+     */
+    void addWrite(HashMessage hash) {
+        if (closed) {
+            return;
+        }
+        pendingWrites.add(hash);
+        reactor.addPendingWriteBytes(algorithm.getLength() * 2);
+        schedule();
+        if (closed) {
+            dropWrites();
+        }
+    }
+
+    /**
+     * Throw away every hash in the write queue. Called once the connection is closed, by the thread closing it and
+     * by any worker that added hashes while it was being closed
+     */
+    private void dropWrites() {
+        int hexLength = algorithm.getLength() * 2;
+        while (pollWrite() != null) {
+            reactor.addPendingWriteBytes(-hexLength);
+        }
+    }
+
+    /**
+     * Put the connection on its reactor's completion queue unless it is already there
+     */
+    void schedule() {
+        if (!scheduled.get() && scheduled.compareAndSet(false, true)) {
+            reactor.complete(this);
+        }
+    }
+
+    /**
+     * Record that the reactor has taken the connection off its completion queue. Called before the connection is
+     * flushed, so hashes added during the flush schedule it again
+     */
+    void clearScheduled() {
+        scheduled.set(false);
+    }
+
+    /**
+     * @param key The key the channel was registered to the reactor's selector under
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return The key the channel was registered to the reactor's selector under
+     */
+    SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Take the next hash that is ready to be written, counting its message as answered
+     * @return The next hash, or null if no hash is ready
+     */
+    HashMessage pollWrite() {
+        HashMessage hash = pendingWrites.poll();
+        if (hash != null) {
+            pending.decrementAndGet();
+        }
+        return hash;
+    }
+
+    /**
+     * Coalesce every hash that is ready behind any bytes left over from the last flush, and write them to the
+     * channel with a single call. Bytes the channel does not accept stay in the buffer for the next flush
+     * @param latencies The histogram the time from reading each message to flushing its hash is recorded in
+     * @return The number of hashes taken from the write queue
+     * @throws IOException If the channel can not be written to, in which case no hash counts as answered
+     */
+    int flush(Histogram latencies) throws IOException {
+        output.compact();
+        int hexLength = algorithm.getLength() * 2;
+        int hashes = 0;
+        long now = System.nanoTime();
+        HashMessage hash;
+        while (output.remaining() >= hexLength && (hash = pollWrite()) != null) {
+            hash.writeHex(output);
+            latencies.record(now - hash.getReceivedNanos());
+            hashes++;
+        }
+        output.flip();
+        if (output.hasRemaining()) {
+            int written;
+            try {
+                written = channel.write(output);
+            } catch (IOException e) {
+                // None of the hashes reached the client, so they stay in flight until the connection is closed
+                pending.addAndGet(hashes);
+                throw e;
+            }
+            if (written > 0) {
+                reactor.addPendingWriteBytes(-written);
+                lastActive = now;
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @return True if bytes of a previous flush have not been written yet
+     */
+    boolean hasOutput() {
+        return output.hasRemaining();
+    }
+
+    /**
+     * @return True if a message read from this connection has not been answered yet
+     */
+    boolean hasPending() {
+        return pending.get() > 0;
+    }
+
+    /**
+     * @return The number of messages read from this connection that have not been answered yet
+     */
+    int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return The number of messages completed by the last read, or of frames started by it
+     */
+    int getLastRead() {
+        return lastRead;
+    }
+
+    /**
+     * How heavily the connection is loading the server: its messages in flight, plus the messages its last read
+     * brought in, which tells apart a connection sending quickly even when nothing of it is in flight
+     * @return The connection's load
+     */
+    int getLoad() {
+        return pending.get() + lastRead;
+    }
+
+    /**
+     * @param paused True while the reactor has stopped reading from the connection because it is overloaded
+     */
+    void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * @return True while the reactor has stopped reading from the connection because it is overloaded
+     */
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @param now The current System.nanoTime()
+     * @param timeout How long a connection may go without moving any bytes, in nanoseconds
+     * @return True if no bytes have moved for longer than timeout, and the connection is not waiting on the server
+     */
+    boolean isIdle(long now, long timeout) {
+        return now - lastActive > timeout && !hasPending() && !hasOutput();
+    }
+
+    /**
+     * @return True once the connection has been closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Without pipelining, a connection is read from once every message has been answered. With pipelining, while it
+     * has fewer messages in flight than the pipeline depth. A connection sending frames also needs a free buffer,
+     * and is read from in the middle of a frame whatever its messages in flight
+     * @return True if the connection should be read from
+     */
+    boolean canRead() {
+        if (stream != null) {
+            return stream.canRead(pending.get(), pipelineDepth);
+        }
+        return pipelineDepth == 0 ? pending.get() == 0 : pending.get() < pipelineDepth;
+    }
+
+    /**
+     * Release every buffer held by the connection and drop every hash waiting to be written. Hashes of messages still
+     * being worked on are dropped when they arrive. The connection can not be used afterwards
+     */
+    void close() {
+        closed = true;
+        releaseSpares(0);
+        if (stream != null) {
+            stream.close();
+        }
+        if (algorithm != null) {
+            dropWrites();
+            reactor.addPendingWriteBytes(-output.remaining());
+            output.clear().flip();
+        }
+    }
+}
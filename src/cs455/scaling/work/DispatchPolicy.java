@@ -0,0 +1,173 @@
+package cs455.scaling.work;
+
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.pool.ThreadPool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Decides, message by message, whether a SelectorWork hashes a message itself on the selector thread or hands it to
+ * the thread pool, whichever should answer it sooner.</p>
+ * <p>The decision comes from a cost model of moving averages. The hash cost is kept per algorithm in nanoseconds per
+ * byte, learnt from every message hashed on either path, so the cost of a message is predicted from its algorithm and
+ * its length. The delay of offloading is the larger of two estimates: the average time Work has waited between
+ * registerWork and a worker starting on it, and, once every worker is busy, the queued Work per worker times the
+ * average time a task takes.</p>
+ * <p>A message is hashed inline if its predicted cost is below the delay of offloading, and if the messages already
+ * hashed inline in this select pass leave room for it. Every message read later in the pass waits behind the inline
+ * hashing before it, so the pass's inline total is held to the same delay, and no message waits on the selector
+ * thread longer than it would have in the pool. Cheap hashes on a lightly loaded pool skip the handoff; slow hashes,
+ * and everything after the budget runs out, go to the pool. At least one message every PROBE_INTERVAL is offloaded
+ * even when inline is cheaper, so the handoff estimate keeps up with the pool.</p>
+ * <p>startPass, decide and recordInline are only called by the SelectorWork thread, the record methods by workers.
+ * Workers update the averages without locking, so two racing samples can lose one of them, which only slows the
+ * average down a little. Statistics can be read from any thread.</p>
+ */
+public class DispatchPolicy {
+
+    // The weight of a new sample in every moving average
+    private static final double ALPHA = 1.0 / 16;
+    // The longest the policy goes without offloading a message, in nanoseconds
+    private static final long PROBE_INTERVAL = 10_000_000L;
+
+    private final ThreadPool threadPool;
+
+    // Moving averages, stored as the bits of a double. Hash cost per byte is indexed by HashAlgorithm id
+    private final AtomicLongArray hashCost;
+    private final AtomicLong handoff;
+    private final AtomicLong taskCost;
+
+    // The delay of offloading for this select pass, and the inline hashing the pass has left
+    private double offloadDelay;
+    private double budget;
+    private long lastOffload;
+
+    // Messages sent down each path since the server started
+    private final AtomicLong inline;
+    private final AtomicLong offloaded;
+
+    /**
+     * @param threadPool The thread pool offloaded messages go to
+     */
+    DispatchPolicy(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+        hashCost = new AtomicLongArray(HashAlgorithms.maxId() + 1);
+        handoff = new AtomicLong();
+        taskCost = new AtomicLong();
+        inline = new AtomicLong();
+        offloaded = new AtomicLong();
+    }
+
+    /**
+     * Estimate the delay of offloading from the pool's current load, and reset the inline budget. Called once per
+     * select pass
+     */
+    void startPass() {
+        double delay = average(handoff);
+        int workers = Math.max(1, threadPool.getWorkerCount());
+        if (threadPool.getBusyWorkerCount() >= workers) {
+            delay = Math.max(delay, (threadPool.getQueuedWork() + 1.0) / workers * average(taskCost));
+        }
+        offloadDelay = delay;
+        budget = delay;
+    }
+
+    /**
+     * Decide where a message is hashed
+     * @param algorithmId The id of the message's HashAlgorithm
+     * @param length The length of the message in bytes
+     * @param now The current System.nanoTime(), or when the message was read
+     * @return True to hash the message on the selector thread, false to offload it
+     */
+    boolean decide(byte algorithmId, int length, long now) {
+        double cost = Double.longBitsToDouble(hashCost.get(algorithmId)) * length;
+        if (cost <= offloadDelay && cost <= budget && now - lastOffload < PROBE_INTERVAL) {
+            budget -= cost;
+            inline.incrementAndGet();
+            return true;
+        }
+        lastOffload = now;
+        offloaded.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Learn from a message hashed on the selector thread, and charge its real cost to the pass's budget
+     * @param algorithmId The id of the message's HashAlgorithm
+     * @param length The length of the message in bytes
+     * @param nanos How long hashing took
+     */
+    void recordInline(byte algorithmId, int length, long nanos) {
+        recordHash(algorithmId, length, nanos);
+        budget -= nanos - Double.longBitsToDouble(hashCost.get(algorithmId)) * length;
+    }
+
+    /**
+     * Learn the cost of hashing a message
+     * @param algorithmId The id of the message's HashAlgorithm
+     * @param length The length of the message in bytes
+     * @param nanos How long hashing took
+     */
+    void recordHash(byte algorithmId, int length, long nanos) {
+        double previous = Double.longBitsToDouble(hashCost.get(algorithmId));
+        double sample = (double) nanos / Math.max(1, length);
+        hashCost.set(algorithmId, Double.doubleToRawLongBits(
+                previous == 0 ? sample : previous + ALPHA * (sample - previous)));
+    }
+
+    /**
+     * Learn how long offloaded Work waited for a worker
+     * @param nanos The time from registerWork to a worker starting on the Work
+     */
+    void recordWait(long nanos) {
+        update(handoff, nanos);
+    }
+
+    /**
+     * Learn how long a worker spends on one task
+     * @param nanos The time the task's run method took
+     */
+    void recordTask(long nanos) {
+        update(taskCost, nanos);
+    }
+
+    private static void update(AtomicLong average, long sample) {
+        double previous = Double.longBitsToDouble(average.get());
+        average.set(Double.doubleToRawLongBits(previous == 0 ? sample : previous + ALPHA * (sample - previous)));
+    }
+
+    private static double average(AtomicLong average) {
+        return Double.longBitsToDouble(average.get());
+    }
+
+    /**
+     * @return Messages hashed on the selector thread since the server started
+     */
+    public long getInline() {
+        return inline.get();
+    }
+
+    /**
+     * @return Messages handed to the thread pool since the server started
+     */
+    public long getOffloaded() {
+        return offloaded.get();
+    }
+
+    /**
+     * @return The average time offloaded Work waits for a worker, in nanoseconds
+     */
+    public double getHandoffNanos() {
+        return average(handoff);
+    }
+
+    /**
+     * @param algorithmId The id of a HashAlgorithm
+     * @param length A message length in bytes
+     * @return The predicted time to hash a message of that length, in nanoseconds, or 0 if nothing is known yet
+     */
+    public double getHashNanos(byte algorithmId, int length) {
+        return Double.longBitsToDouble(hashCost.get(algorithmId)) * length;
+    }
+}
@@ -0,0 +1,216 @@
+package cs455.scaling.work;
+
+import cs455.scaling.digest.DigestStream;
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.message.HashMessage;
+import cs455.scaling.utils.BufferPool;
+import cs455.scaling.utils.LockFreeArrayQueue;
+import cs455.scaling.utils.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Receives the messages of a connection whose handshake set HashAlgorithms.FRAMED, and hashes each message while
+ * it is still arriving instead of once it is complete.</p>
+ * <p>Each message is a frame: its length as a 4 byte big endian unsigned int, then that many bytes. The selector
+ * thread reads a frame's bytes into pooled buffers, and hands each buffer to the thread pool as soon as it is full
+ * or the frame ends. A worker adds the buffer to the connection's DigestStream and releases it, and once the frame's
+ * last buffer is added, the digest goes to the connection's write queue like any other hash.</p>
+ * <p>At most CHUNKS buffers are held at once, so a connection needs the same memory for a frame of any length. When
+ * they are all taken, the connection is not read from until a worker has hashed one, which holds back a client that
+ * sends faster than its frames are hashed. Chunks are hashed in order, by one worker at a time: this object is only in
+ * the thread pool while it has chunks queued, and is put there by whoever queues the first one.</p>
+ * <p>Frames bypass batching, the CoDel shedder, the digest cache and traffic capture, which all work on whole 8 KB
+ * messages.</p>
+ */
+class FrameStream extends Work {
+
+    // The bytes of a frame's length
+    static final int HEADER_LENGTH = 4;
+    // The most pooled buffers a connection holds at once, read and not yet hashed
+    static final int CHUNKS = 4;
+
+    private final Connection connection;
+    private final SelectorWork reactor;
+    private final BufferPool bufferPool;
+    private final HashAlgorithm algorithm;
+    // Only used by the worker hashing the connection's chunks
+    private final DigestStream digest;
+
+    // The length of the frame being received. Only used by the selector thread
+    private final ByteBuffer header;
+    // Bytes of the current frame not read yet, -1 while waiting for a frame's length
+    private long bodyRemaining;
+    // The buffer being read into, null if the last one was handed off
+    private PooledBuffer current;
+
+    // Buffers read and waiting to be hashed
+    private final LockFreeArrayQueue<Chunk> chunks;
+    // Buffers the selector thread may still take, out of CHUNKS
+    private final AtomicInteger free;
+    // Set while this object is in the thread pool, or about to be
+    private final AtomicBoolean draining;
+
+    /**
+     * @param connection The connection the frames are read from
+     * @param algorithm The algorithm the client chose in its handshake
+     * @param bufferPool The pool frames are read into
+     * @param reactor The SelectorWork the connection is registered with
+     */
+    FrameStream(Connection connection, HashAlgorithm algorithm, BufferPool bufferPool, SelectorWork reactor) {
+        this.connection = connection;
+        this.reactor = reactor;
+        this.bufferPool = bufferPool;
+        this.algorithm = algorithm;
+        digest = algorithm.newStream();
+        header = ByteBuffer.allocate(HEADER_LENGTH);
+        bodyRemaining = -1;
+        chunks = new LockFreeArrayQueue<>(CHUNKS);
+        free = new AtomicInteger(CHUNKS);
+        draining = new AtomicBoolean();
+        setFlow(connection.getFlow());
+    }
+
+    /**
+     * Read the bytes that are ready on the channel without waiting for more, handing full buffers and the ends of
+     * frames to the thread pool. Stops early once every buffer is taken, or when a new frame would go past the
+     * pipeline depth. Called by the selector thread
+     * @param channel The connection's channel
+     * @param pending The connection's messages in flight
+     * @param pipelineDepth The most messages the connection may have in flight, or 0 if it is not pipelined
+     * @return The number of frames whose length was read, or -1 if the client has closed the connection
+     * @throws IOException If the read fails
+     */
+    int read(SocketChannel channel, int pending, int pipelineDepth) throws IOException {
+        int started = 0;
+        while (canRead(pending + started, pipelineDepth)) {
+            if (bodyRemaining < 0) {
+                int read = channel.read(header);
+                if (read < 0) {
+                    return -1;
+                }
+                if (header.hasRemaining()) {
+                    break;
+                }
+                header.flip();
+                bodyRemaining = header.getInt() & 0xFFFFFFFFL;
+                header.clear();
+                connection.dispatched(1);
+                started++;
+                if (bodyRemaining == 0) {
+                    free.decrementAndGet();
+                    submit(null, true);
+                }
+                continue;
+            }
+            if (current == null) {
+                free.decrementAndGet();
+                current = bufferPool.acquire();
+            }
+            ByteBuffer buffer = current.getBuffer();
+            if (buffer.remaining() > bodyRemaining) {
+                buffer.limit(buffer.position() + (int) bodyRemaining);
+            }
+            int read = channel.read(buffer);
+            if (read < 0) {
+                return -1;
+            }
+            bodyRemaining -= read;
+            if (bodyRemaining == 0 || !buffer.hasRemaining()) {
+                buffer.flip();
+                PooledBuffer full = current;
+                current = null;
+                submit(full, bodyRemaining == 0);
+            } else if (read == 0) {
+                break;
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Queue a chunk to be hashed, and put this object in the thread pool unless it is there already
+     * @param buffer The chunk's bytes, or null for the end of an empty frame
+     * @param last True if the chunk ends its frame
+     */
+    private void submit(PooledBuffer buffer, boolean last) {
+        if (last) {
+            bodyRemaining = -1;
+        }
+        chunks.add(new Chunk(buffer, last, System.nanoTime()));
+        if (!draining.get() && draining.compareAndSet(false, true)) {
+            reactor.execute(this);
+        }
+    }
+
+    /**
+     * @param pending The connection's messages in flight
+     * @param pipelineDepth The most messages the connection may have in flight, or 0 if it is not pipelined
+     * @return True if a buffer is free, and the connection is in the middle of a frame or may start another one
+     */
+    boolean canRead(int pending, int pipelineDepth) {
+        return free.get() > 0 && (bodyRemaining >= 0 || pending < Math.max(1, pipelineDepth));
+    }
+
+    /**
+     * Hash every queued chunk in order, releasing each buffer as soon as it is hashed. The end of a frame finishes
+     * its digest and adds it to the connection's write queue. When a buffer frees up after all of them were taken,
+     * the connection is scheduled so the selector thread reads from it again
+     */
+    @Override
+    public void run() {
+        do {
+            Chunk chunk;
+            while ((chunk = chunks.poll()) != null) {
+                boolean closed = connection.isClosed();
+                if (chunk.buffer != null) {
+                    if (!closed) {
+                        digest.update(chunk.buffer.getBuffer());
+                    }
+                    chunk.buffer.release();
+                }
+                if (chunk.last && !closed) {
+                    HashMessage hash = new HashMessage(algorithm);
+                    digest.finish(hash.getDigest());
+                    hash.setReceivedNanos(chunk.receivedNanos);
+                    connection.addWrite(hash);
+                }
+                if (free.getAndIncrement() == 0 && !closed) {
+                    connection.schedule();
+                }
+            }
+            draining.set(false);
+        } while (!chunks.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Release the buffer being read into. Buffers already queued are released by the worker hashing them. Called by
+     * the selector thread when the connection closes
+     */
+    void close() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+
+    /**
+     * A buffer of a frame's bytes, read and waiting to be hashed
+     */
+    private static final class Chunk {
+        final PooledBuffer buffer;
+        final boolean last;
+        // When the chunk was read, which for the last chunk of a frame is when the whole frame had arrived
+        final long receivedNanos;
+
+        Chunk(PooledBuffer buffer, boolean last, long receivedNanos) {
+            this.buffer = buffer;
+            this.last = last;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
@@ -14,4 +14,14 @@ public interface HashCommunication {
      * @param hash The hash to send
      */
     public void communicate(ArrayList<HashMessage> hash);
+
+    /**
+     * Check whether a message's hash is no longer wanted, because the connection it came from has closed. Work that
+     * is still queued for a closed connection uses this to skip hashing
+     * @param index The position of the message in the hashes passed to communicate
+     * @return True if the hash would be thrown away
+     */
+    public default boolean isCancelled(int index) {
+        return false;
+    }
 }
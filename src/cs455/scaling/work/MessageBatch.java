@@ -0,0 +1,42 @@
+package cs455.scaling.work;
+
+import cs455.scaling.message.HashMessage;
+
+import java.util.ArrayList;
+
+/**
+ * Routes the hashes of a batch of messages read from several connections back to each message's own Connection.
+ * The hashes passed to communicate must be in the same order as the messages of the batch.
+ */
+class MessageBatch implements HashCommunication {
+
+    // The connection each message of the batch was read from, in batch order
+    private final Connection[] connections;
+
+    /**
+     * @param connections The connection each message of the batch was read from, in batch order
+     */
+    MessageBatch(Connection[] connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Add each hash to the write queue of the connection its message came from
+     * @param hash The hashes of the batch, in batch order
+     */
+    @Override
+    public void communicate(ArrayList<HashMessage> hash) {
+        for (int i = 0; i < connections.length; i++) {
+            connections[i].addWrite(hash.get(i));
+        }
+    }
+
+    /**
+     * @param index The position of a message in the batch
+     * @return True if the connection the message came from has closed
+     */
+    @Override
+    public boolean isCancelled(int index) {
+        return connections[index].isClosed();
+    }
+}
@@ -0,0 +1,154 @@
+package cs455.scaling.work;
+
+import cs455.scaling.server.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * <p>Serves the server's Metrics page over HTTP on a second port. It requires 1 thread to run, and it will not
+ * release the Thread until the Selector is closed.</p>
+ * <p>Like SelectorWork, every connection is non-blocking and driven by the Selector, but with its own Selector and
+ * thread, so scraping never holds up the reactors. A GET of /metrics is answered with the page, anything else with
+ * 404, and the connection is closed once the response has been written.</p>
+ */
+public class MetricsWork extends Work {
+
+    // Request headers beyond this are not read
+    private static final int REQUEST_CAPACITY = 4096;
+
+    // A Selector for the metrics channel and the scrapes it accepts
+    private final Selector selector;
+    // The channel listening for scrapes
+    private final ServerSocketChannel serverChannel;
+    private final Metrics metrics;
+
+    /**
+     * The state of one HTTP exchange, kept as the attachment of its SelectionKey
+     */
+    private static class Exchange {
+        final ByteBuffer request = ByteBuffer.allocate(REQUEST_CAPACITY);
+        ByteBuffer response;
+    }
+
+    /**
+     * @param selector The selector the serverChannel is registered to for OP_ACCEPT
+     * @param serverChannel The channel that listens for scrapes
+     * @param metrics The page to serve
+     */
+    public MetricsWork(Selector selector, ServerSocketChannel serverChannel, Metrics metrics) {
+        threadsNeeded = 1;
+        this.selector = selector;
+        this.serverChannel = serverChannel;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Accept every pending scrape and register it for reading
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Exchange());
+        }
+    }
+
+    /**
+     * Read the request until its headers are complete, then prepare the response and switch the key to WRITE
+     */
+    private void read(SelectionKey key) throws IOException {
+        Exchange exchange = (Exchange) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(exchange.request) < 0) {
+            close(key);
+            return;
+        }
+        String request = new String(exchange.request.array(), 0, exchange.request.position(),
+                StandardCharsets.ISO_8859_1);
+        if (!request.contains("\r\n\r\n") && exchange.request.hasRemaining()) {
+            return;
+        }
+        exchange.response = respond(request);
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Build the HTTP response to a request
+     */
+    private ByteBuffer respond(String request) {
+        String status;
+        String body;
+        if (request.startsWith("GET /metrics ") || request.startsWith("GET / ")) {
+            status = "200 OK";
+            body = metrics.render();
+        } else {
+            status = "404 Not Found";
+            body = "Not found\n";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + bytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer response = ByteBuffer.allocate(headBytes.length + bytes.length);
+        response.put(headBytes).put(bytes).flip();
+        return response;
+    }
+
+    /**
+     * Write as much of the response as the socket takes, closing the connection once all of it is written
+     */
+    private void write(SelectionKey key) throws IOException {
+        Exchange exchange = (Exchange) key.attachment();
+        ((SocketChannel) key.channel()).write(exchange.response);
+        if (!exchange.response.hasRemaining()) {
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.err.println("MetricsWork: Could not close a scrape connection");
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selection = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (selection.isAcceptable()) {
+                            accept();
+                        } else if (selection.isReadable()) {
+                            read(selection);
+                        } else if (selection.isValid() && selection.isWritable()) {
+                            write(selection);
+                        }
+                    } catch (IOException e) {
+                        if (selection.channel() != serverChannel) {
+                            close(selection);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("MetricsWork: IOException from Selector");
+            }
+        }
+    }
+}
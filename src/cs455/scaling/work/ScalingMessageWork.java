@@ -6,8 +6,8 @@ import cs455.scaling.message.Message;
 import java.util.ArrayList;
 
 /**
- * <p>Takes one or more 8 KB byte arrays, produces SHA-1 hashes of them,
- * and adds the hashes to a SelectorWork object's write queue</p>
+ * <p>Takes one or more 8 KB byte arrays, produces hashes of them with each message's algorithm,
+ * and adds the hashes to the write queue of the Connection they were read from</p>
  *
  * <p>Intended for use by SelectorWork</p>
  */
@@ -15,34 +15,108 @@ public class ScalingMessageWork extends Work {
 
     private final Message[] messages;
     private final HashCommunication addToSelectorWork;
+    // Decides whether the batch has waited too long to be worth hashing, null to always hash
+    private final CoDelShedder shedder;
+    // The HashMessages the digests are written into, allocated up front so run does not allocate
+    private final ArrayList<HashMessage> hashList;
+    // Learns how long the Work waited and how long hashing took, null to measure nothing
+    private final DispatchPolicy dispatch;
+    // When the Work was created, just before it was registered with the thread pool
+    private final long createdNanos;
 
     /**
      * Initialize the work
-     * @param addToSelectorWork A reference to the SelectorWork that instantiated the class (implements the HashCommunication
-     *                          interface for thread safety)
+     * @param addToSelectorWork The write queue the hashes should be added to, normally the Connection the messages were
+     *                          read from (implements the HashCommunication interface for thread safety)
      * @param messages The messages to be hashed
      */
     ScalingMessageWork(HashCommunication addToSelectorWork, Message... messages) {
+        this(addToSelectorWork, null, messages);
+    }
+
+    /**
+     * Initialize the work
+     * @param addToSelectorWork The write queue the hashes should be added to, normally the Connection the messages were
+     *                          read from (implements the HashCommunication interface for thread safety)
+     * @param shedder Decides whether the messages are answered with the busy code instead of hashed. May be null
+     * @param messages The messages to be hashed
+     */
+    ScalingMessageWork(HashCommunication addToSelectorWork, CoDelShedder shedder, Message... messages) {
+        this(addToSelectorWork, shedder, null, messages);
+    }
+
+    /**
+     * Initialize the work
+     * @param addToSelectorWork The write queue the hashes should be added to, normally the Connection the messages were
+     *                          read from (implements the HashCommunication interface for thread safety)
+     * @param shedder Decides whether the messages are answered with the busy code instead of hashed. May be null
+     * @param dispatch The policy that learns the Work's wait and hashing times. May be null
+     * @param messages The messages to be hashed
+     */
+    ScalingMessageWork(HashCommunication addToSelectorWork, CoDelShedder shedder, DispatchPolicy dispatch,
+                       Message... messages) {
+        this.shedder = shedder;
+        this.dispatch = dispatch;
+        createdNanos = dispatch == null ? 0 : System.nanoTime();
         this.messages = new Message[messages.length];
         for (int i = 0; i < messages.length; i++) {
             this.messages[i] = messages[i];
         }
         this.addToSelectorWork = addToSelectorWork;
+        hashList = new ArrayList<>(messages.length);
+        for (int i = 0; i < messages.length; i++) {
+            hashList.add(new HashMessage(messages[i].getAlgorithm()));
+        }
+    }
 
+    /**
+     * @return The number of messages the Work hashes
+     */
+    @Override
+    public int getCost() {
+        return messages.length;
     }
 
     /**
-     * Loop through the messages array, generate their hashes, and then send them as a list back to the SelectorWork object
+     * Loop through the messages array, generate their hashes, and then send them as a list back to the write queue.
+     * Each message is released once it has been hashed, so pooled buffers go back to the Selector's pool. If the
+     * shedder decides the batch waited too long, every message is marked busy instead of hashed. Messages whose
+     * connection has closed while the Work was queued are released without being hashed. Given a DispatchPolicy, the
+     * time the Work waited for a worker, each hash and the whole task are recorded in it
      */
     @Override
     public void run() {
-        ArrayList<HashMessage> hashList = new ArrayList<>();
-        for (Message m : messages) {
-            HashMessage h = m.getHash();
+        long start = dispatch == null ? 0 : System.nanoTime();
+        if (dispatch != null) {
+            dispatch.recordWait(start - createdNanos);
+        }
+        long hashed = start;
+        boolean shed = shedder != null
+                && shedder.shouldShed(System.nanoTime() - messages[0].getReceivedNanos(), messages.length);
+        for (int i = 0; i < messages.length; i++) {
+            Message m = messages[i];
+            HashMessage h = hashList.get(i);
+            if (addToSelectorWork.isCancelled(i)) {
+                m.release();
+                continue;
+            }
+            if (!shed) {
+                m.digestInto(h);
+                if (dispatch != null) {
+                    long now = System.nanoTime();
+                    dispatch.recordHash(m.getAlgorithm().getId(), Message.SIZE, now - hashed);
+                    hashed = now;
+                }
+            }
+            h.setBusy(shed);
             h.setReturnAddress(m.getSource());
-            hashList.add(h);
+            h.setReceivedNanos(m.getReceivedNanos());
+            m.release();
         }
         addToSelectorWork.communicate(hashList);
+        if (dispatch != null) {
+            dispatch.recordTask(System.nanoTime() - start);
+        }
     }
 
 }
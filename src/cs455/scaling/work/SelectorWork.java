@@ -1,43 +1,128 @@
 package cs455.scaling.work;
 
+import cs455.scaling.digest.DigestCache;
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
 import cs455.scaling.message.HashMessage;
 import cs455.scaling.message.Message;
+import cs455.scaling.pool.FairFlow;
 import cs455.scaling.pool.ThreadPool;
 import cs455.scaling.server.Report;
 import cs455.scaling.server.ReportCounter;
+import cs455.scaling.server.ServerConfig;
 import cs455.scaling.utils.BlockingLinkedList;
-import cs455.scaling.utils.SafeArrayList;
+import cs455.scaling.utils.BufferPool;
+import cs455.scaling.utils.Histogram;
 
 import java.io.IOException;
-import java.net.SocketAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * <p>Perform work in the Thread pool associated with a single Selector. It requires 1 thread to run, and
  * it will not release the Thread until the Selector is closed.</p>
- * <p>A SelectorWork object will add ScalingMessageWork to the thread pool and occasionally check on its progress.
- * If the ScalingMessageWork object has completed its run method, the SelectorWork object will add its
- * HashMessage to its writing queue and will eventually write the result to the proper socket.</p>
+ * <p>A SelectorWork object will add ScalingMessageWork to the thread pool. When the ScalingMessageWork object
+ * completes its run method, its HashMessages are added to the write queue of the Connection the messages came from,
+ * and the Connection is put on this object's completion queue. The selector thread drains the completion queue each
+ * time it wakes up and flushes those Connections straight away; WRITE is only set for a key while bytes the socket
+ * would not take are waiting. Workers only wake the selector when the completion queue goes from empty to
+ * non-empty, so wakeups are coalesced under load.</p>
+ * <p>Under overload (see AdmissionControl) the heaviest connections are paused and new connections are refused
+ * with the busy code. A CoDelShedder, if configured, has workers answer batches that waited too long with the busy
+ * code instead of hashing them, so latency stays bounded instead of growing with the backlog.</p>
+ * <p>With adaptive dispatch, a DispatchPolicy decides for each message whether the selector thread hashes it itself,
+ * skipping the round trip through the thread pool, or adds it to the batch as usual. Hashes computed on the selector
+ * thread go through the completion queue like any other, without waking the selector, and are flushed before the
+ * next select. Frames (see FrameStream) are always hashed in the pool.</p>
+ * <p>With a FAIR thread pool, every connection gets a FairFlow, with the tier and weight configured for its address,
+ * and a batch only ever holds messages of one connection, so the pool can share its threads between clients.</p>
+ * <p>A SelectorWork object either accepts connections from its own serverChannel, or, in multi-reactor mode, is
+ * handed connections that an Acceptor has accepted through addChannel.</p>
  * <p>The SelectorWork object is not thread safe, so only its corresponding ThreadPoolManager should
- * hold a reference to it.</p>
+ * hold a reference to it. addChannel, getConnectionCount and getReport may be called from other threads.</p>
  */
-public class SelectorWork extends Work implements HashCommunication {
+public class SelectorWork extends Work {
 
     // A Selector for the server's serverChannel and the connections it accepts
     private final Selector selector;
-    // The channel the server is listening on for incoming connections
+    // The channel the server is listening on for incoming connections (null when fed by an Acceptor)
     private final ServerSocketChannel serverChannel;
+    // Channels accepted by an Acceptor that still need to be registered to the selector
+    private final ConcurrentLinkedQueue<SocketChannel> newChannels;
+    // The number of open connections registered to the selector
+    private final AtomicInteger connectionCount;
+    // Connections that have hashes ready to be written
+    private final ConcurrentLinkedQueue<Connection> completions;
+    // Set once a worker has woken the selector, cleared by the selector thread before it drains the completions
+    private final AtomicBoolean wakeupPending;
     // A queue of byte[]s that need processed. Each byte[] will be 8KB so it can be converted to a Message
     private BlockingLinkedList<byte[]> readyForProcessing;
-    // A queue of HashMessages that need to be written to the socket that sent the original Message.
-    private SafeArrayList<HashMessage> readyForWrite;
     // The thread pool SelectorWork should add jobs to
-    private final ArrayList<ReportCounter> counters;
+    private final Set<ReportCounter> counters;
     private ThreadPool threadPool;
+    // Direct buffers that incoming messages are read into. Buffers are released by ScalingMessageWork
+    private final BufferPool bufferPool;
+    // Reused for the messages cut out of each read
+    private final ArrayList<Message> readyMessages;
+    // Decides how many messages go into each ScalingMessageWork
+    private final BatchPolicy batchPolicy;
+    // The batch being gathered, and the connection each of its messages came from
+    private final Message[] batchMessages;
+    private final Connection[] batchConnections;
+    private int batchSize;
+    private int batchLimit;
+    // Hashes written since the last report, indexed by HashAlgorithm id
+    private final AtomicLongArray algorithmCounts;
+    // The most messages a connection may have in flight, or 0 to answer each read before the next
+    private final int pipelineDepth;
+    // Hashes written since the server started, never reset
+    private final LongAdder messagesAnswered;
+    // Bytes of hex hashes queued or coalesced but not yet written to a socket
+    private final LongAdder pendingWriteBytes;
+    // The time from reading a message to flushing its hash, in nanoseconds
+    private final Histogram latencies;
+    // Messages read and not yet answered on every connection
+    private long inFlight;
+    // Decides when this object is overloaded, and what the shedder does with batches that waited too long
+    private final AdmissionControl admission;
+    private final CoDelShedder shedder;
+    // Connections not read from while overloaded, to be read from again once the overload is over
+    private final ArrayList<Connection> paused;
+    private volatile int pausedCount;
+    // How long a connection may go without traffic, 0 to keep idle connections open
+    private final long idleTimeout;
+    // When idle connections are next looked for
+    private long nextIdleCheck;
+    // Connections closed since the server started, by the client or by the server
+    private final AtomicLong closedConnections;
+    // Where every message read is appended, null to capture nothing
+    private TrafficCapture capture;
+    // Digests of messages already hashed, null to hash every message
+    private DigestCache cache;
+    // Decides which messages are hashed on the selector thread, null to hand every message to the thread pool
+    private final DispatchPolicy dispatch;
+    // The thread running this object, which does not need to wake the selector to complete a connection
+    private volatile Thread selectorThread;
+    // True if connections get FairFlows and batches are kept to one connection, for a FAIR thread pool
+    private final boolean fair;
+    // Where the tier and weight of each client come from
+    private final ServerConfig config;
 
     /**
      * @param selector The selector to which the serverChannel will be registered
@@ -45,15 +130,63 @@ public class SelectorWork extends Work implements HashCommunication {
      * @param threadPool The thread pool this object should add work to
      */
     public SelectorWork(Selector selector, ServerSocketChannel serverChannel, ThreadPool threadPool) {
+        this(selector, serverChannel, threadPool, ServerConfig.defaults());
+    }
+
+    /**
+     * @param selector The selector to which the serverChannel will be registered
+     * @param serverChannel The channel that listens for incoming connections on the server
+     * @param threadPool The thread pool this object should add work to
+     * @param config The server's options
+     */
+    public SelectorWork(Selector selector, ServerSocketChannel serverChannel, ThreadPool threadPool,
+                        ServerConfig config) {
         threadsNeeded = 1;
         this.selector = selector;
         this.serverChannel = serverChannel;
         this.threadPool = threadPool;
 
+        newChannels = new ConcurrentLinkedQueue<>();
+        completions = new ConcurrentLinkedQueue<>();
+        wakeupPending = new AtomicBoolean();
+        connectionCount = new AtomicInteger();
+
         readyForProcessing = new BlockingLinkedList<>();
-        readyForWrite = new SafeArrayList<>();
 
-        counters = new ArrayList<>(100);
+        counters = ConcurrentHashMap.newKeySet();
+
+        bufferPool = new BufferPool(Message.SIZE, 256);
+        readyMessages = new ArrayList<>();
+
+        batchPolicy = new BatchPolicy(threadPool);
+        batchMessages = new Message[BatchPolicy.MAX_BATCH];
+        batchConnections = new Connection[BatchPolicy.MAX_BATCH];
+        batchLimit = 1;
+        algorithmCounts = new AtomicLongArray(HashAlgorithms.maxId() + 1);
+        pipelineDepth = config.getPipelineDepth();
+        messagesAnswered = new LongAdder();
+        pendingWriteBytes = new LongAdder();
+        latencies = new Histogram();
+        admission = new AdmissionControl(config.getHighWatermark(), config.getLowWatermark());
+        shedder = config.getCodelTargetNanos() > 0 ? new CoDelShedder(config.getCodelTargetNanos()) : null;
+        paused = new ArrayList<>();
+        idleTimeout = config.getIdleTimeoutNanos();
+        nextIdleCheck = System.nanoTime() + idleTimeout;
+        closedConnections = new AtomicLong();
+        dispatch = config.isAdaptiveDispatch() ? new DispatchPolicy(threadPool) : null;
+        fair = threadPool.getMode() == ThreadPool.Mode.FAIR;
+        this.config = config;
+    }
+
+    /**
+     * Create a SelectorWork for multi-reactor mode. It has no serverChannel of its own and only handles the
+     * connections given to it through addChannel
+     * @param selector The selector accepted connections will be registered to
+     * @param threadPool The thread pool this object should add work to
+     * @param config The server's options
+     */
+    public SelectorWork(Selector selector, ThreadPool threadPool, ServerConfig config) {
+        this(selector, null, threadPool, config);
     }
 
     /**
@@ -61,14 +194,212 @@ public class SelectorWork extends Work implements HashCommunication {
      * @return A report containing said info
      */
     public Report getReport() {
-        Report report;
-        synchronized (counters) {
-            report = new Report(counters);
-            for (ReportCounter counter : counters) {
-                counter.reset();
+        return getReport(this);
+    }
+
+    /**
+     * Generate a single report covering the connections of several SelectorWork objects. Should be called every
+     * 20 seconds
+     * @param selectorWorks The SelectorWork objects to include
+     * @return A report containing said info
+     */
+    public static Report getReport(SelectorWork... selectorWorks) {
+        ArrayList<ReportCounter> snapshots = new ArrayList<>();
+        long batches = 0;
+        long batchedMessages = 0;
+        int batchLimit = 0;
+        long[] algorithmCounts = new long[HashAlgorithms.maxId() + 1];
+        for (SelectorWork selectorWork : selectorWorks) {
+            for (ReportCounter counter : selectorWork.counters) {
+                snapshots.add(counter.snapshot());
+            }
+            batches += selectorWork.batchPolicy.takeBatches();
+            batchedMessages += selectorWork.batchPolicy.takeMessages();
+            batchLimit = Math.max(batchLimit, selectorWork.batchPolicy.getLimit());
+            for (int id = 0; id < algorithmCounts.length; id++) {
+                algorithmCounts[id] += selectorWork.algorithmCounts.getAndSet(id, 0);
+            }
+        }
+        double averageBatchSize = batches == 0 ? 0 : (double) batchedMessages / batches;
+        LinkedHashMap<String, Long> countsByAlgorithm = new LinkedHashMap<>();
+        for (int id = 1; id < algorithmCounts.length; id++) {
+            HashAlgorithm algorithm = HashAlgorithms.forId((byte) id);
+            countsByAlgorithm.put(algorithm.getName(), algorithmCounts[id]);
+        }
+        return new Report(snapshots, averageBatchSize, batchLimit, countsByAlgorithm);
+    }
+
+    /**
+     * @return The counters of the connections this object is handling, for reading by other threads
+     */
+    public Collection<ReportCounter> getCounters() {
+        return Collections.unmodifiableSet(counters);
+    }
+
+    /**
+     * @return The number of hashes written since the server started
+     */
+    public long getMessagesAnswered() {
+        return messagesAnswered.sum();
+    }
+
+    /**
+     * @return The number of bytes of hashes that are ready but have not been written to a socket yet
+     */
+    public long getPendingWriteBytes() {
+        return pendingWriteBytes.sum();
+    }
+
+    /**
+     * @return The time from reading each message to flushing its hash since the server started, in nanoseconds
+     */
+    public Histogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Append every message read from now on to a capture file. Must be called before this object is run
+     * @param capture The capture, shared by every SelectorWork of the server
+     */
+    public void setCapture(TrafficCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * @return The capture messages are appended to, or null if nothing is captured
+     */
+    public TrafficCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Look digests up in a cache before hashing. Must be called before this object is run
+     * @param cache The cache, shared by every SelectorWork of the server
+     */
+    public void setCache(DigestCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return The digest cache, or null if digests are not cached
+     */
+    public DigestCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Look up the algorithm a client asked for, going through the digest cache if there is one
+     * @param id The byte the client sent
+     * @return The algorithm with that id, or null if there is none
+     */
+    HashAlgorithm algorithmFor(byte id) {
+        return cache == null ? HashAlgorithms.forId(id) : cache.forId(id);
+    }
+
+    /**
+     * @return The policy deciding which messages are hashed on the selector thread, or null if every message is
+     * handed to the thread pool
+     */
+    public DispatchPolicy getDispatchPolicy() {
+        return dispatch;
+    }
+
+    /**
+     * @return The admission control deciding when this object is overloaded
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * @return The number of messages answered with the busy code since the server started
+     */
+    public long getShedMessages() {
+        return shedder == null ? 0 : shedder.getShed();
+    }
+
+    /**
+     * @return The number of connections closed since the server started
+     */
+    public long getClosedConnections() {
+        return closedConnections.get();
+    }
+
+    /**
+     * @return The number of connections not being read from because this object is overloaded
+     */
+    public int getPausedConnections() {
+        return pausedCount;
+    }
+
+    /**
+     * Track hashes that are waiting to be written. Called by Connections, from both worker and selector threads
+     * @param bytes The number of bytes added to (or, when negative, written from) the connections' queues
+     */
+    void addPendingWriteBytes(long bytes) {
+        pendingWriteBytes.add(bytes);
+    }
+
+    /**
+     * @return The number of open connections this object is handling
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Hand a connection accepted on another thread to this object. The channel is registered to the selector the
+     * next time the selector wakes up
+     * @param channel The newly accepted channel
+     */
+    public void addChannel(SocketChannel channel) {
+        connectionCount.incrementAndGet();
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Put a Connection with hashes ready to be written on the completion queue. Called by worker threads, at most
+     * once per Connection until the selector thread has taken it. The selector is only woken if no other completion
+     * has woken it since it last drained the queue. The selector thread itself never wakes the selector, since it
+     * drains the queue again before its next select
+     * @param connection The connection with hashes ready
+     */
+    void complete(Connection connection) {
+        completions.add(connection);
+        if (Thread.currentThread() != selectorThread && !wakeupPending.get()
+                && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Hand work to the thread pool from outside the selector thread's own batching, such as a FrameStream with chunks
+     * to hash
+     * @param work The work to run
+     */
+    void execute(Work work) {
+        threadPool.registerWork(work);
+    }
+
+    /**
+     * Flush every Connection on the completion queue. A Connection whose channel fails to be written to is closed
+     */
+    private void drainCompletions() {
+        wakeupPending.set(false);
+        Connection connection;
+        while ((connection = completions.poll()) != null) {
+            connection.clearScheduled();
+            SelectionKey key = connection.getKey();
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                writeToChannel(key);
+            } catch (IOException e) {
+                closeConnection(key);
             }
         }
-        return report;
     }
 
     /**
@@ -76,61 +407,290 @@ public class SelectorWork extends Work implements HashCommunication {
      * @throws IOException Thrown if the object's selector is closed
      */
     private void registerToSelector() throws IOException {
+        SocketChannel newChannel = serverChannel.accept();
+        if (newChannel != null) {
+            connectionCount.incrementAndGet();
+            register(newChannel);
+        }
+    }
+
+    /**
+     * Register every channel handed over by addChannel to the selector
+     * @throws IOException Thrown if the object's selector is closed
+     */
+    private void registerNewChannels() throws IOException {
+        SocketChannel newChannel;
+        while ((newChannel = newChannels.poll()) != null) {
+            register(newChannel);
+        }
+    }
+
+    /**
+     * Register an accepted SocketChannel to the Selector with a new Connection as its attachment
+     * @param newChannel The accepted channel
+     * @throws IOException Thrown if the object's selector is closed
+     */
+    private void register(SocketChannel newChannel) throws IOException {
+        if (admission.isOverloaded()) {
+            refuse(newChannel);
+            return;
+        }
         try {
-            SocketChannel newChannel = serverChannel.accept();
             newChannel.configureBlocking(false);
-            newChannel.register(selector, SelectionKey.OP_READ);
-            synchronized (counters) {
-                counters.add(new ReportCounter(newChannel.getRemoteAddress()));
+            // Hashes are small writes sent as they finish; Nagle would hold each one back until the previous is ACKed
+            newChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(newChannel, bufferPool, pipelineDepth, this);
+            if (fair) {
+                String address = ((InetSocketAddress) connection.getAddress()).getAddress().getHostAddress();
+                connection.setFlow(new FairFlow(config.getClientTier(address), config.getClientWeight(address)));
             }
+            connection.setKey(newChannel.register(selector, SelectionKey.OP_READ, connection));
+            counters.add(connection.getCounter());
         } catch (ClosedChannelException e) {
+            connectionCount.decrementAndGet();
             System.err.println("SelectorWork: Could not register channel to selector: Channel is closed");
         }
     }
 
     /**
-     * <p>Read a message from the channel.</p>
-     * <p>Side effects: Message objects will wrapped in a ScalingMessageWork object and added to the Work queue of the thread pool,
-     * and the interest OPs for the key will be set to WRITE</p>
-     * @param key The key that contains the SocketChannel to read from (passing a Channel that is not a SocketChannel may cause problems)
+     * Turn away a new connection while overloaded: send the busy code, as far as the socket takes it straight away,
+     * and close the channel
+     * @param newChannel The accepted channel
+     */
+    private void refuse(SocketChannel newChannel) {
+        connectionCount.decrementAndGet();
+        admission.refuse();
+        try {
+            newChannel.configureBlocking(false);
+            ByteBuffer busy = ByteBuffer.allocate(HashMessage.BUSY_PREFIX.length());
+            HashMessage.writeBusy(busy, busy.capacity());
+            busy.flip();
+            newChannel.write(busy);
+            newChannel.close();
+        } catch (IOException e) {
+            System.err.println("SelectorWork: Could not refuse a connection cleanly");
+        }
+    }
+
+    /**
+     * <p>Read whatever bytes are ready on the channel without waiting for a full message.</p>
+     * <p>Side effects: every message completed by the read is added to the batch being gathered, which is wrapped in a
+     * ScalingMessageWork object and added to the Work queue of the thread pool whenever it reaches the batch limit,
+     * and the interest OPs for the key are updated (see updateInterest).
+     * If the client has closed the connection or the read fails, the key is cancelled and the channel closed</p>
+     * @param key The key that contains the SocketChannel to read from and its Connection as the attachment
+     */
+    private void readFromChannel(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        readyMessages.clear();
+        int read;
+        try {
+            read = connection.read(readyMessages);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            closeConnection(key);
+            return;
+        }
+        inFlight += connection.getLastRead();
+        for (Message message : readyMessages) {
+            if (capture != null) {
+                capture.write(message);
+            }
+            connection.dispatched(1);
+            if (dispatch != null
+                    && dispatch.decide(message.getAlgorithm().getId(), Message.SIZE, message.getReceivedNanos())) {
+                hashInline(message, connection);
+                continue;
+            }
+            if (fair && batchSize > 0 && batchConnections[0] != connection) {
+                dispatchBatch();
+            }
+            batchMessages[batchSize] = message;
+            batchConnections[batchSize] = connection;
+            batchSize++;
+            if (batchSize >= batchLimit) {
+                dispatchBatch();
+            }
+        }
+        updateInterest(key, connection);
+    }
+
+    /**
+     * Hash a message on the selector thread and add its hash to the connection's write queue, charging the time it
+     * took to the DispatchPolicy
+     * @param message The message, released once hashed
+     * @param connection The connection it was read from
+     */
+    private void hashInline(Message message, Connection connection) {
+        long start = System.nanoTime();
+        HashAlgorithm algorithm = message.getAlgorithm();
+        HashMessage hash = new HashMessage(algorithm);
+        message.digestInto(hash);
+        hash.setReturnAddress(message.getSource());
+        hash.setReceivedNanos(message.getReceivedNanos());
+        message.release();
+        dispatch.recordInline(algorithm.getId(), Message.SIZE, System.nanoTime() - start);
+        connection.addWrite(hash);
+    }
+
+    /**
+     * <p>Set the interest OPs of a connection's key from its state.</p>
+     * <p>Without pipelining, a connection with unanswered messages is not read from, and is read from again once
+     * every message has been answered. With pipelining, READ stays set while the connection has fewer messages in
+     * flight than the pipeline depth. A connection sending frames is also not read from while all of its buffers are
+     * waiting to be hashed. In every case WRITE is only set while bytes of a flush are still waiting to be
+     * written; hashes that become ready arrive through the completion queue instead.</p>
+     * <p>While overloaded, a connection whose load is at least its fair share of the messages in flight is paused
+     * instead of read from, until the overload is over or its load drops.</p>
+     * @param key The key of the connection
+     * @param connection The key's attachment
      */
-    private void readFromChannel(SelectionKey key) throws IOException {
-        SocketChannel channel = (SocketChannel)key.channel();
-        ByteBuffer byteBuffer = ByteBuffer.allocate(8192);
-        while (byteBuffer.hasRemaining()) {
-            channel.read(byteBuffer);
+    private void updateInterest(SelectionKey key, Connection connection) {
+        int ops = 0;
+        boolean read = connection.canRead();
+        if (read && admission.isOverloaded() && connection.getLoad() >= fairShare()) {
+            read = false;
+            if (!connection.isPaused()) {
+                connection.setPaused(true);
+                paused.add(connection);
+                pausedCount = paused.size();
+            }
+        }
+        if (read) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (connection.hasOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
         }
-        Message message = new Message(byteBuffer.array(), channel.getRemoteAddress());
-        threadPool.registerWork(new ScalingMessageWork(this::communicate, message));
-        key.interestOps(SelectionKey.OP_WRITE);
     }
 
     /**
-     * Write hashes from the object's hash list that should be sent to the object in question
-     * @param key The key that contains the SocketChannel to write to
+     * @return The number of messages in flight per connection, at least 1
      */
-    private void writeToChannel(SelectionKey key) throws InterruptedException, IOException {
-        SocketChannel channel = (SocketChannel) key.channel();
-        ByteBuffer byteBuffer = ByteBuffer.allocate(40);
-        HashMessage h = new HashMessage();
-        SocketAddress address = channel.getRemoteAddress();
-        h.setReturnAddress(address);
-        ArrayList<HashMessage> messages = readyForWrite.getAndRemoveAll(h);
+    private long fairShare() {
+        return Math.max(1, inFlight / Math.max(1, connectionCount.get()));
+    }
 
-        for (HashMessage hash : messages) {
-            byteBuffer.clear();
-            byteBuffer.put(hash.getHash().getBytes());
-            byteBuffer.flip();
-            int written = 0;
-            while (written < 40) {
-                written += channel.write(byteBuffer);
+    /**
+     * Read from every paused connection again once the overload is over
+     */
+    private void resumePaused() {
+        for (Connection connection : paused) {
+            connection.setPaused(false);
+            SelectionKey key = connection.getKey();
+            if (key.isValid()) {
+                updateInterest(key, connection);
             }
-            synchronized (counters) {
-                counters.get(counters.indexOf(new ReportCounter(address))).increment();
+        }
+        paused.clear();
+        pausedCount = 0;
+    }
+
+    /**
+     * Hand the gathered batch to the thread pool as a single ScalingMessageWork. The hashes of a batch read from one
+     * connection go straight to its write queue, otherwise a MessageBatch routes each hash to its own connection
+     */
+    private void dispatchBatch() {
+        if (batchSize == 0) {
+            return;
+        }
+        Connection first = batchConnections[0];
+        boolean oneConnection = true;
+        for (int i = 1; i < batchSize && oneConnection; i++) {
+            oneConnection = batchConnections[i] == first;
+        }
+        HashCommunication destination = oneConnection ? first
+                : new MessageBatch(Arrays.copyOf(batchConnections, batchSize));
+        ScalingMessageWork work = new ScalingMessageWork(destination, shedder, dispatch,
+                Arrays.copyOf(batchMessages, batchSize));
+        work.setFlow(first.getFlow());
+        threadPool.registerWork(work);
+        batchPolicy.record(batchSize);
+
+        Arrays.fill(batchMessages, 0, batchSize, null);
+        Arrays.fill(batchConnections, 0, batchSize, null);
+        batchSize = 0;
+    }
+
+    /**
+     * Cancel a key and close its channel after the client has disconnected, the channel has failed, or the connection
+     * has been idle too long. Everything held for the connection is let go: its buffers and queued hashes, its
+     * report counter, its share of the messages in flight, and its place among the paused connections. Work for it
+     * that is still queued skips hashing
+     * @param key The key of the connection to close
+     */
+    private void closeConnection(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        if (connection.isClosed()) {
+            return;
+        }
+        key.cancel();
+        inFlight -= connection.getPending();
+        if (connection.isPaused()) {
+            connection.setPaused(false);
+            paused.remove(connection);
+            pausedCount = paused.size();
+        }
+        connection.close();
+        counters.remove(connection.getCounter());
+        connectionCount.decrementAndGet();
+        closedConnections.incrementAndGet();
+        try {
+            connection.getChannel().close();
+        } catch (IOException e) {
+            System.err.println("SelectorWork: Could not close channel of " + connection.getAddress());
+        }
+    }
+
+    /**
+     * Close every connection that has been idle for longer than the idle timeout. Runs at most a few times per
+     * timeout, so the cost does not depend on the message rate
+     */
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        if (idleTimeout == 0 || now - nextIdleCheck < 0) {
+            return;
+        }
+        nextIdleCheck = now + idleCheckInterval();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (key.isValid() && attachment instanceof Connection
+                    && ((Connection) attachment).isIdle(now, idleTimeout)) {
+                closeConnection(key);
             }
         }
+    }
+
+    /**
+     * @return How often idle connections are looked for, in nanoseconds: a quarter of the timeout, at most a second
+     */
+    private long idleCheckInterval() {
+        return Math.min(idleTimeout / 4, 1_000_000_000L);
+    }
+
+    /**
+     * Flush the hashes waiting in the Connection's write queue to its channel in a single write. Only the
+     * Connection's own queue is touched, and whatever the channel does not accept is kept for the next time the key
+     * is writable. The interest OPs for the key are updated afterwards, so a connection that was waiting on its
+     * answers is read from again
+     * @param key The key that contains the SocketChannel to write to and its Connection as the attachment
+     */
+    private void writeToChannel(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        int hashes = connection.flush(latencies);
+        if (hashes > 0) {
+            inFlight -= hashes;
+            connection.getCounter().add(hashes);
+            messagesAnswered.add(hashes);
+            algorithmCounts.addAndGet(connection.getAlgorithm().getId(), hashes);
+        }
 
-        key.interestOps(SelectionKey.OP_READ);
+        updateInterest(key, connection);
     }
 
     /**
@@ -139,40 +699,58 @@ public class SelectorWork extends Work implements HashCommunication {
      */
     @Override
     public void run() {
+        long selectTimeout = idleTimeout == 0 ? 0 : Math.max(1, idleCheckInterval() / 1_000_000);
+        selectorThread = Thread.currentThread();
         while (true) {
             try {
-                selector.select();
+                selector.select(selectTimeout);
+                registerNewChannels();
+                drainCompletions();
+                closeIdleConnections();
+                batchLimit = batchPolicy.update();
+                if (dispatch != null) {
+                    dispatch.startPass();
+                }
+                if (!admission.update(inFlight) && !paused.isEmpty()) {
+                    resumePaused();
+                }
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
                 Iterator<SelectionKey> iterator = selectedKeys.iterator();
                 // Iterate over the channels that are ready for IO.
                 while (iterator.hasNext()) {
                     SelectionKey selection = iterator.next();
+                    iterator.remove();
+                    // The key may have been cancelled since the select, by a failed write of a completion
+                    if (!selection.isValid()) {
+                        continue;
+                    }
                     // Can only be the serverChannel held by this object
                     if (selection.isAcceptable()) {
                         registerToSelector();
+                        continue;
                     }
 
                     // Is a connection accepted by the serverChannel
-                    if (selection.isReadable()) {
-                        readFromChannel(selection);
-                    }
+                    try {
+                        if (selection.isReadable()) {
+                            readFromChannel(selection);
+                        }
 
-                    if (selection.isWritable()) {
-                        writeToChannel(selection);
+                        if (selection.isValid() && selection.isWritable()) {
+                            writeToChannel(selection);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        closeConnection(selection);
                     }
-
-                    iterator.remove();
+                }
+                // Messages are never held across a select call, and neither are hashes computed by this thread
+                dispatchBatch();
+                if (!completions.isEmpty()) {
+                    drainCompletions();
                 }
             } catch (IOException e) {
                 System.err.println("SelectorWork: IOException from Selector");
-            } catch (InterruptedException e) {
-                System.err.println("SelectorWork: Interrupted");
             }
         }
     }
-
-    @Override
-    public void communicate(ArrayList<HashMessage> hash) {
-        readyForWrite.addAll(hash);
-    }
 }
@@ -0,0 +1,319 @@
+package cs455.scaling.work;
+
+import cs455.scaling.digest.DigestCache;
+import cs455.scaling.digest.DigestStream;
+import cs455.scaling.digest.HashAlgorithm;
+import cs455.scaling.digest.HashAlgorithms;
+import cs455.scaling.message.HashMessage;
+import cs455.scaling.message.Message;
+import cs455.scaling.pool.ThreadPool;
+import cs455.scaling.server.Report;
+import cs455.scaling.server.ReportCounter;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>An alternative to SelectorWork and its thread pool: every accepted connection gets a thread of its own that
+ * does blocking reads, hashes each message and does blocking writes, with no selector on the message path.</p>
+ * <p>The threads are virtual threads when the JDK has them (Thread.startVirtualThread, found by reflection so the
+ * server still builds and runs on older JDKs) and platform threads otherwise. Hashing is done on the connection's
+ * own thread, or, given a hash pool, handed to that bounded ThreadPool as a ScalingMessageWork while the connection's
+ * thread waits for the result, so the number of threads hashing at once stays bounded. Length-prefixed frames (see
+ * FrameStream) are always hashed on the connection's own thread, a buffer at a time as they are read.</p>
+ * <p>getReport produces the same Report as SelectorWork, so the two modes can be compared side by side.</p>
+ */
+public class ThreadPerConnection implements Runnable {
+
+    // Thread.startVirtualThread, or null if the JDK has no virtual threads
+    private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+
+    // A Selector for the server's serverChannel only
+    private final Selector selector;
+    // The channel the server is listening on for incoming connections
+    private final ServerSocketChannel serverChannel;
+    // Hashes messages when not null, otherwise each connection's thread hashes its own messages
+    private final ThreadPool hashPool;
+    // Digests of messages already hashed, null to hash every message
+    private DigestCache cache;
+
+    private final Set<ReportCounter> counters;
+    private final AtomicInteger connectionCount;
+    // Hashes written since the last report, indexed by HashAlgorithm id
+    private final AtomicLongArray algorithmCounts;
+
+    /**
+     * @param selector The selector the serverChannel is registered to for OP_ACCEPT
+     * @param serverChannel The channel that listens for incoming connections on the server
+     * @param hashPool The pool messages are hashed in, or null to hash on each connection's own thread
+     */
+    public ThreadPerConnection(Selector selector, ServerSocketChannel serverChannel, ThreadPool hashPool) {
+        this.selector = selector;
+        this.serverChannel = serverChannel;
+        this.hashPool = hashPool;
+        counters = ConcurrentHashMap.newKeySet();
+        connectionCount = new AtomicInteger();
+        algorithmCounts = new AtomicLongArray(HashAlgorithms.maxId() + 1);
+    }
+
+    /**
+     * Look digests up in a cache before hashing. Must be called before this object is run
+     * @param cache The cache
+     */
+    public void setCache(DigestCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Look up Thread.startVirtualThread, which only exists on JDKs with virtual threads
+     */
+    private static Method findStartVirtualThread() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return True if connections are given virtual threads, false if they fall back to platform threads
+     */
+    public static boolean hasVirtualThreads() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Start a thread for a connection, virtual if possible
+     */
+    private static void startThread(Runnable task) {
+        if (START_VIRTUAL_THREAD != null) {
+            try {
+                START_VIRTUAL_THREAD.invoke(null, task);
+                return;
+            } catch (ReflectiveOperationException e) {
+                System.err.println("ThreadPerConnection: Could not start a virtual thread, using a platform thread");
+            }
+        }
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The number of open connections
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Generate a report of current connections and throughput, like SelectorWork.getReport. Messages are never
+     * batched, so the batch size and limit are always 1. Should be called every 20 seconds
+     * @return A report containing said info
+     */
+    public Report getReport() {
+        ArrayList<ReportCounter> snapshots = new ArrayList<>();
+        for (ReportCounter counter : counters) {
+            snapshots.add(counter.snapshot());
+        }
+        LinkedHashMap<String, Long> countsByAlgorithm = new LinkedHashMap<>();
+        for (int id = 1; id < algorithmCounts.length(); id++) {
+            HashAlgorithm algorithm = HashAlgorithms.forId((byte) id);
+            countsByAlgorithm.put(algorithm.getName(), algorithmCounts.getAndSet(id, 0));
+        }
+        return new Report(snapshots, 1, 1, countsByAlgorithm);
+    }
+
+    /**
+     * Accept connections until the selector is closed, starting a thread for each one
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey selection = iterator.next();
+                    iterator.remove();
+                    if (selection.isAcceptable()) {
+                        SocketChannel channel;
+                        while ((channel = serverChannel.accept()) != null) {
+                            channel.configureBlocking(true);
+                            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                            connectionCount.incrementAndGet();
+                            startThread(new BlockingConnection(channel));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("ThreadPerConnection: IOException from Selector");
+            }
+        }
+    }
+
+    /**
+     * A single client connection, served by its own thread with blocking IO
+     */
+    private class BlockingConnection implements Runnable, HashCommunication {
+
+        private final SocketChannel channel;
+        // The hash of the message handed to the hash pool, passed back by communicate
+        private final ArrayBlockingQueue<HashMessage> result;
+
+        BlockingConnection(SocketChannel channel) {
+            this.channel = channel;
+            result = new ArrayBlockingQueue<>(1);
+        }
+
+        /**
+         * Receive the hash of a message from the hash pool
+         * @param hash A list holding the single hash
+         */
+        @Override
+        public void communicate(ArrayList<HashMessage> hash) {
+            result.add(hash.get(0));
+        }
+
+        /**
+         * Read the handshake, then read, hash and answer one message at a time until the client disconnects
+         */
+        @Override
+        public void run() {
+            ReportCounter counter = null;
+            try {
+                SocketAddress address = channel.getRemoteAddress();
+                counter = new ReportCounter(address);
+                counters.add(counter);
+
+                ByteBuffer handshake = ByteBuffer.allocate(1);
+                if (!readFully(handshake)) {
+                    return;
+                }
+                byte id = handshake.get(0);
+                byte algorithmId = (byte) (id & ~HashAlgorithms.FRAMED);
+                HashAlgorithm algorithm = cache == null ? HashAlgorithms.forId(algorithmId)
+                        : cache.forId(algorithmId);
+                if (algorithm == null) {
+                    System.err.println("ThreadPerConnection: unknown hash algorithm " + id + " from " + address);
+                    return;
+                }
+                if ((id & HashAlgorithms.FRAMED) != 0) {
+                    serveFrames(algorithm, counter);
+                    return;
+                }
+
+                byte[] bytes = new byte[Message.SIZE];
+                ByteBuffer in = ByteBuffer.wrap(bytes);
+                ByteBuffer out = ByteBuffer.allocate(algorithm.getLength() * 2);
+                HashMessage localHash = new HashMessage(algorithm);
+                while (true) {
+                    in.clear();
+                    if (!readFully(in)) {
+                        return;
+                    }
+                    HashMessage hash;
+                    if (hashPool == null) {
+                        in.flip();
+                        algorithm.digest(in, localHash.getDigest());
+                        hash = localHash;
+                    } else {
+                        hashPool.registerWork(new ScalingMessageWork(this, new Message(bytes, address, algorithm)));
+                        hash = result.take();
+                    }
+                    out.clear();
+                    hash.writeHex(out);
+                    out.flip();
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    counter.increment();
+                    algorithmCounts.incrementAndGet(algorithm.getId());
+                }
+            } catch (IOException e) {
+                // The client went away, fall through to closing the connection
+            } catch (InterruptedException e) {
+                System.err.println("ThreadPerConnection: interrupted");
+            } finally {
+                if (counter != null) {
+                    counters.remove(counter);
+                }
+                connectionCount.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("ThreadPerConnection: Could not close a client channel");
+                }
+            }
+        }
+
+        /**
+         * Read, hash and answer one length-prefixed frame at a time until the client disconnects. Each read goes
+         * straight into the digest, so a frame of any length needs a single buffer
+         * @param algorithm The algorithm the client chose
+         * @param counter The connection's report counter
+         */
+        private void serveFrames(HashAlgorithm algorithm, ReportCounter counter) throws IOException {
+            DigestStream digest = algorithm.newStream();
+            ByteBuffer header = ByteBuffer.allocate(FrameStream.HEADER_LENGTH);
+            ByteBuffer in = ByteBuffer.allocateDirect(Message.SIZE);
+            ByteBuffer out = ByteBuffer.allocate(algorithm.getLength() * 2);
+            HashMessage hash = new HashMessage(algorithm);
+            while (true) {
+                header.clear();
+                if (!readFully(header)) {
+                    return;
+                }
+                long remaining = header.getInt(0) & 0xFFFFFFFFL;
+                while (remaining > 0) {
+                    in.clear();
+                    in.limit((int) Math.min(in.capacity(), remaining));
+                    int read = channel.read(in);
+                    if (read < 0) {
+                        return;
+                    }
+                    remaining -= read;
+                    in.flip();
+                    digest.update(in);
+                }
+                digest.finish(hash.getDigest());
+                out.clear();
+                hash.writeHex(out);
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                counter.increment();
+                algorithmCounts.incrementAndGet(algorithm.getId());
+            }
+        }
+
+        /**
+         * Block until the buffer is full
+         * @return False if the client closed the connection first
+         */
+        private boolean readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package cs455.scaling.work;
+
+import cs455.scaling.message.Message;
+import cs455.scaling.utils.LockFreeArrayQueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Appends every message the server reads to a capture file, back to back in the order they were read, with
+ * nothing in between. The file can be replayed by the Replay client, which answers for it on the same terms as a
+ * generated corpus.</p>
+ * <p>Every SelectorWork of a server shares one capture. Selectors never touch the file: they retain each message's
+ * buffer and hand it to a writer thread through a bounded queue, so a slow disk can not stall network IO. If the
+ * queue is full the message is dropped from the capture and counted. The writer gathers up to GATHER queued messages
+ * into each write, so messages from different selectors never interleave. If a write fails, capturing stops and the
+ * server carries on.</p>
+ */
+public class TrafficCapture implements Runnable {
+
+    // Messages that may wait for the writer, 64 MB of buffers
+    private static final int QUEUE_CAPACITY = 8192;
+    // The most messages written at once
+    private static final int GATHER = 64;
+
+    private final FileChannel file;
+    private final LockFreeArrayQueue<Message> queue;
+    private final AtomicLong captured;
+    private final AtomicLong dropped;
+    private volatile boolean failed;
+
+    private TrafficCapture(FileChannel file) {
+        this.file = file;
+        queue = new LockFreeArrayQueue<>(QUEUE_CAPACITY);
+        captured = new AtomicLong();
+        dropped = new AtomicLong();
+    }
+
+    /**
+     * Open a capture file, creating it if needed, and start its writer thread. Messages are added to the end of an
+     * existing file
+     * @param path The file to capture to
+     * @return The capture
+     * @throws IOException If the file can not be opened for writing
+     */
+    public static TrafficCapture open(String path) throws IOException {
+        TrafficCapture capture = new TrafficCapture(FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        Thread writer = new Thread(capture, "TrafficCapture");
+        writer.setDaemon(true);
+        writer.start();
+        return capture;
+    }
+
+    /**
+     * Queue a message to be appended. Called by SelectorWork threads before the message is handed to the thread
+     * pool. Never waits
+     * @param message A complete message
+     */
+    void write(Message message) {
+        if (failed) {
+            return;
+        }
+        if (!queue.offer(message.retain())) {
+            message.release();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Write queued messages to the file until a write fails, then keep releasing whatever is queued
+     */
+    @Override
+    public void run() {
+        Message[] messages = new Message[GATHER];
+        ByteBuffer[] buffers = new ByteBuffer[GATHER];
+        while (true) {
+            int count;
+            try {
+                messages[0] = queue.take();
+            } catch (InterruptedException e) {
+                System.err.println("TrafficCapture: Interrupted");
+                return;
+            }
+            count = 1;
+            while (count < GATHER && (messages[count] = queue.poll()) != null) {
+                count++;
+            }
+            if (!failed) {
+                writeAll(messages, buffers, count);
+            }
+            for (int i = 0; i < count; i++) {
+                messages[i].release();
+                messages[i] = null;
+                buffers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Write the first count messages in one gathering write, repeated until every byte is written
+     */
+    private void writeAll(Message[] messages, ByteBuffer[] buffers, int count) {
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            buffers[i] = messages[i].getBytes();
+            remaining += buffers[i].remaining();
+        }
+        try {
+            while (remaining > 0) {
+                remaining -= file.write(buffers, 0, count);
+            }
+            captured.addAndGet(count);
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("TrafficCapture: Could not write to capture file, capturing stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The number of messages captured since the server started
+     */
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    /**
+     * @return The number of messages left out of the capture because the writer had fallen behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -1,5 +1,7 @@
 package cs455.scaling.work;
 
+import cs455.scaling.pool.FairFlow;
+
 /**
  * Interface to define work for cs455.scaling.pool.ThreadPool
  */
@@ -15,4 +17,29 @@ public abstract class Work implements Runnable {
         return threadsNeeded;
     }
 
+    // The flow a FAIR ThreadPool schedules the Work in, null for the pool's shared flow
+    private FairFlow flow;
+
+    /**
+     * @return The flow the Work belongs to, or null if it belongs to none
+     */
+    public FairFlow getFlow() {
+        return flow;
+    }
+
+    /**
+     * @param flow The flow a FAIR ThreadPool should schedule the Work in, normally the flow of the client it is for
+     */
+    public void setFlow(FairFlow flow) {
+        this.flow = flow;
+    }
+
+    /**
+     * The share of its flow's turn the Work uses up in a FAIR ThreadPool
+     * @return The number of messages the Work handles, 1 unless overridden
+     */
+    public int getCost() {
+        return 1;
+    }
+
 }